@@ -1,5 +1,5 @@
 /****************************************************
-Nortel DMS switch console emulator v1.6
+Nortel DMS switch console emulator v2.0
 
 This utility interprets subset of VT100, ANSI- and ISO
 terminal control sequences then emulates console with 
@@ -26,37 +26,82 @@ accomodate Lisbon switch not padding values with 0 to string length 3.
 Handled DATA == null in few places.
 v1.5 - 23/08/2017 Max. some improvements to handle Lisbon. Changed return value for getData() from null
 v1.6 - 05/09/2017 Max: added DUMP_MODE that saves input of parse() converted to byte[] in /tmp for debugging
+v2.0 - 19/10/2026 agent. Table driven ECMA-48 Decoder replaces P_/PS_ regex chain, which is kept
+as legacy mode. Tokens kept in primitive arrays with decoded params. Added TerminalEventHandler,
+incremental feed(), renderDirect(), Path, ByteBuffer and channel input. Console implements cursor
+motion, erase, SGR attributes, scrolling, scroll regions, scrollback, auto-wrap and snapshots,
+with lazily allocated and pooled rows. Dumps written in background to an indexed archive.
 
 ****************************************************/
 package com.maxoflondon.ossutils.vt100ish;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.LinkedList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.Date;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.text.SimpleDateFormat;
 import java.text.DateFormat;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
 
 public class Vt100ish {
 
 	public static final boolean DEV_MODE = false;
 	public static final long PRINT_DELAY = 100;	
-	public static final boolean DUMP_MODE = true;
+	public static final boolean DUMP_MODE = true; // default, see setDumpWriter(DumpWriter)
 	public static final int DUMP_LEVEL = 3;
+	public static final int FEED_BUFFER_SIZE = 8192;
+	public static final int CONSOLE_POOL_SIZE = 16; // idle consoles kept for reuse by all instances
+	public static final int MAP_WINDOW_SIZE = 1 << 28; // bytes of file mapped at a time by render(Path)
+	
+	// packed cell attributes, colours are stored + 1 so that 0 is default
+	public static final int ATTR_FG_MASK = 0x1f;
+	public static final int ATTR_BG_SHIFT = 5;
+	public static final int ATTR_BG_MASK = 0x1f << ATTR_BG_SHIFT;
+	public static final int ATTR_BOLD = 1 << 10;
+	public static final int ATTR_UNDERLINE = 1 << 11;
+	public static final int ATTR_BLINK = 1 << 12;
+	public static final int ATTR_REVERSE = 1 << 13;
 	
 	//VT100 command refs: 
 	// http://vt100.net/docs/vt102-ug/chapter5.html
@@ -97,6 +142,7 @@ public class Vt100ish {
 			/*
 			ESC [ Ps ;...; Ps m             Select Graphic Rendition
 			Ps = None or 0            Default Rendition
+			Up to 16 Ps are kept, see Decoder.getDroppedParams()
 			*/
 			@Override
 			public String toString() {
@@ -122,6 +168,7 @@ public class Vt100ish {
 		},
 		MOVE_CURSOR {
 			// <ESC>[Pn;PnH
+			// <ESC>[Pn;Pnf
 			@Override
 			public String toString() {
 				return "MOVE_CURSOR";
@@ -155,6 +202,76 @@ public class Vt100ish {
 				return "CURSOR_LEFT";
 			}
 		},			
+		CURSOR_NEXT_LINE {
+			// ESC [ Pn E                      Cursor Next Line, to column 1
+			@Override
+			public String toString() {
+				return "CURSOR_NEXT_LINE";
+			}
+		},
+		CURSOR_PREVIOUS_LINE {
+			// ESC [ Pn F                      Cursor Previous Line, to column 1
+			@Override
+			public String toString() {
+				return "CURSOR_PREVIOUS_LINE";
+			}
+		},
+		CURSOR_HORIZONTAL_ABSOLUTE {
+			// ESC [ Pn G                      Cursor to column
+			@Override
+			public String toString() {
+				return "CURSOR_HORIZONTAL_ABSOLUTE";
+			}
+		},
+		LINE_POSITION_ABSOLUTE {
+			// ESC [ Pn d                      Cursor to line
+			@Override
+			public String toString() {
+				return "LINE_POSITION_ABSOLUTE";
+			}
+		},
+		LINE_FEED {
+			// LF, VT, FF
+			@Override
+			public String toString() {
+				return "LINE_FEED";
+			}
+		},
+		CARRIAGE_RETURN {
+			// CR
+			@Override
+			public String toString() {
+				return "CARRIAGE_RETURN";
+			}
+		},
+		INDEX {
+			// <ESC>D                       cursor down, scrolls up at bottom margin
+			@Override
+			public String toString() {
+				return "INDEX";
+			}
+		},
+		REVERSE_INDEX {
+			// <ESC>M                       cursor up, scrolls down at top margin
+			@Override
+			public String toString() {
+				return "REVERSE_INDEX";
+			}
+		},
+		NEXT_LINE {
+			// <ESC>E                       carriage return and index
+			@Override
+			public String toString() {
+				return "NEXT_LINE";
+			}
+		},
+		SET_SCROLL_REGION {
+			// ESC [ Pt ; Pb r              DECSTBM, top and bottom margins
+			@Override
+			public String toString() {
+				return "SET_SCROLL_REGION";
+			}
+		},
 		DATA {
 			// whatever is not classified or ignored will be data for display
 			@Override
@@ -183,6 +300,67 @@ public class Vt100ish {
 		return null;
 	}
 	
+	/*
+		Receives commands as they are decoded, one method per COMMAND. Console is
+		one implementation, consumers not needing the screen can implement it to
+		process a stream with no tokens nor grid allocated, see decode().
+		Numeric arguments are as received, text is a range of decoder input valid
+		only for the duration of the call.
+	*/
+	public static interface TerminalEventHandler {
+		public void onCursorHome();
+		public void onMoveCursor(int row, int col);
+		public void onCursorUp(int n);
+		public void onCursorDown(int n);
+		public void onCursorRight(int n);
+		public void onCursorLeft(int n);
+		public void onCursorNextLine(int n);
+		public void onCursorPreviousLine(int n);
+		public void onCursorColumn(int col);
+		public void onCursorRow(int row);
+		public void onEraseInDisplay(int mode);
+		public void onEraseInLine(int mode);
+		public void onSelectGraphicRendition(int[] params, int off, int n);
+		public void onSaveCursor();
+		public void onRestoreCursor();
+		public void onLineFeed();
+		public void onCarriageReturn();
+		public void onIndex();
+		public void onReverseIndex();
+		public void onNextLine();
+		public void onSetScrollRegion(int top, int bottom);
+		public void onText(byte[] buf, int off, int len);
+		// text of direct buffer, off is index in buf whose position is not used
+		public void onText(ByteBuffer buf, int off, int len);
+	}
+	
+	// empty TerminalEventHandler to extend when only few events are of interest
+	public static class TerminalEventAdapter implements TerminalEventHandler {
+		public void onCursorHome() { }
+		public void onMoveCursor(int row, int col) { }
+		public void onCursorUp(int n) { }
+		public void onCursorDown(int n) { }
+		public void onCursorRight(int n) { }
+		public void onCursorLeft(int n) { }
+		public void onCursorNextLine(int n) { }
+		public void onCursorPreviousLine(int n) { }
+		public void onCursorColumn(int col) { }
+		public void onCursorRow(int row) { }
+		public void onEraseInDisplay(int mode) { }
+		public void onEraseInLine(int mode) { }
+		public void onSelectGraphicRendition(int[] params, int off, int n) { }
+		public void onSaveCursor() { }
+		public void onRestoreCursor() { }
+		public void onLineFeed() { }
+		public void onCarriageReturn() { }
+		public void onIndex() { }
+		public void onReverseIndex() { }
+		public void onNextLine() { }
+		public void onSetScrollRegion(int top, int bottom) { }
+		public void onText(byte[] buf, int off, int len) { }
+		public void onText(ByteBuffer buf, int off, int len) { }
+	}
+	
 
 	public static final Pattern P_CURSOR_HOME = Pattern.compile("^(\\x1b\\[H)(?:.*)$");
 	//public static final Pattern P_MOVE_CURSOR = Pattern.compile("^(\\x1b\\[(0[0-9]{2});(0[0-9]{2})H)(?:.*)$");
@@ -210,22 +388,194 @@ public class Vt100ish {
 	public static final Pattern PS_SELECT_GRAPHIC_RENDITION = Pattern.compile("^(\\x1b\\[(?:[0-9]*;*){0,3}m)(.+)$");
 	public static final Pattern PS_ERASE_IN_DISPLAY = Pattern.compile("^(\\x1b\\[[0-2]*J)(.+)$");
 	public static final Pattern PS_ERASE_IN_LINE = Pattern.compile("^(\\x1b\\[[0-2]*K)(.+)$");
-	public static final Pattern PS_IGNORE = Pattern.compile("^(\\x1b)(.*)");	
-	
+	public static final Pattern PS_IGNORE = Pattern.compile("^(\\x1b)(.*)");
+
+	// Decoder byte classes, ECMA-48 CSI is ESC [ P..P I..I F with
+	// parameter bytes 0x30-0x3F, intermediate bytes 0x20-0x2F and final byte 0x40-0x7E
+	private static final int X_OTHER = 0; // C0 controls and DEL
+	private static final int X_ESC = 1;
+	private static final int X_CSI = 2; // '['
+	private static final int X_DIGIT = 3;
+	private static final int X_SEMI = 4;
+	private static final int X_FINAL = 5; // 0x40-0x7E but '['
+	private static final int X_CANCEL = 6; // CAN, SUB
+	private static final int X_INTERMEDIATE = 7; // 0x20-0x2F
+	private static final int X_PRIVATE = 8; // ':' '<' '=' '>' '?'
+	private static final int X_HIGH = 9; // 0x80-0xFF
+	private static final int X_EXECUTE = 10; // LF VT FF CR
+	private static final int X_COUNT = 11;
+
+	// Decoder states
+	private static final int S_GROUND = 0;
+	private static final int S_ESC = 1;
+	private static final int S_CSI_PARAM = 2;
+	private static final int S_IGNORE = 3; // until first ESC of capture
+	private static final int S_ESC_INTERMEDIATE = 4;
+	private static final int S_CSI_INTERMEDIATE = 5;
+	private static final int S_CSI_IGNORE = 6; // well formed but not acted upon, up to final byte
+	private static final int S_COUNT = 7;
+
+	// Decoder actions
+	private static final int A_NONE = 0;
+	private static final int A_ESC_ENTRY = 1;
+	private static final int A_CSI_ENTRY = 2;
+	private static final int A_PARAM = 3;
+	private static final int A_SEPARATOR = 4;
+	private static final int A_ESC_DISPATCH = 5;
+	private static final int A_CSI_DISPATCH = 6;
+	private static final int A_PRINT = 7;
+	private static final int A_EXECUTE = 8;
+
+	private static final byte[] BYTE_CLASS = new byte[256];
+	static {
+		for (int c = 0x20; c < 0x30; c++) BYTE_CLASS[c] = X_INTERMEDIATE;
+		for (int c = '0'; c <= '9'; c++) BYTE_CLASS[c] = X_DIGIT;
+		for (int c = ':'; c < 0x40; c++) BYTE_CLASS[c] = X_PRIVATE;
+		for (int c = 0x40; c < 0x7f; c++) BYTE_CLASS[c] = X_FINAL;
+		for (int c = 0x80; c < 0x100; c++) BYTE_CLASS[c] = X_HIGH;
+		BYTE_CLASS[';'] = X_SEMI;
+		BYTE_CLASS['['] = X_CSI;
+		BYTE_CLASS[0x1b] = X_ESC;
+		BYTE_CLASS[0x18] = X_CANCEL;
+		BYTE_CLASS[0x1a] = X_CANCEL;
+		for (int c = 0x0a; c <= 0x0d; c++) BYTE_CLASS[c] = X_EXECUTE;
+	}
+
+	// (action << 4 | next state) indexed by [state][byte class]
+	private static final int[][] TRANSITIONS = new int[S_COUNT][X_COUNT];
+	static {
+		for (int s = 0; s < S_COUNT; s++) {
+			// in any sequence C0 controls are skipped or executed, CAN SUB and 8 bit bytes abort it
+			on(s, X_OTHER, A_NONE, s);
+			on(s, X_EXECUTE, A_EXECUTE, s);
+			on(s, X_CANCEL, A_NONE, S_GROUND);
+			on(s, X_HIGH, A_NONE, S_GROUND);
+			on(s, X_ESC, A_ESC_ENTRY, S_ESC);
+		}
+		for (int x = 0; x < X_COUNT; x++) {
+			if (x == X_ESC) continue;
+			if (x != X_EXECUTE) on(S_GROUND, x, A_PRINT, S_GROUND);
+			on(S_IGNORE, x, A_NONE, S_IGNORE);
+		}
+		on(S_ESC, X_CSI, A_CSI_ENTRY, S_CSI_PARAM);
+		on(S_ESC, X_INTERMEDIATE, A_NONE, S_ESC_INTERMEDIATE);
+		on(S_ESC, X_DIGIT, A_ESC_DISPATCH, S_GROUND);
+		on(S_ESC, X_SEMI, A_ESC_DISPATCH, S_GROUND);
+		on(S_ESC, X_PRIVATE, A_ESC_DISPATCH, S_GROUND);
+		on(S_ESC, X_FINAL, A_ESC_DISPATCH, S_GROUND);
+		on(S_ESC_INTERMEDIATE, X_INTERMEDIATE, A_NONE, S_ESC_INTERMEDIATE);
+		on(S_ESC_INTERMEDIATE, X_DIGIT, A_NONE, S_GROUND);
+		on(S_ESC_INTERMEDIATE, X_SEMI, A_NONE, S_GROUND);
+		on(S_ESC_INTERMEDIATE, X_PRIVATE, A_NONE, S_GROUND);
+		on(S_ESC_INTERMEDIATE, X_FINAL, A_NONE, S_GROUND);
+		on(S_ESC_INTERMEDIATE, X_CSI, A_NONE, S_GROUND);
+		on(S_CSI_PARAM, X_DIGIT, A_PARAM, S_CSI_PARAM);
+		on(S_CSI_PARAM, X_SEMI, A_SEPARATOR, S_CSI_PARAM);
+		on(S_CSI_PARAM, X_PRIVATE, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_PARAM, X_INTERMEDIATE, A_NONE, S_CSI_INTERMEDIATE);
+		on(S_CSI_PARAM, X_FINAL, A_CSI_DISPATCH, S_GROUND);
+		on(S_CSI_PARAM, X_CSI, A_CSI_DISPATCH, S_GROUND);
+		// no supported command has intermediates, parameter byte after them is malformed
+		on(S_CSI_INTERMEDIATE, X_INTERMEDIATE, A_NONE, S_CSI_INTERMEDIATE);
+		on(S_CSI_INTERMEDIATE, X_DIGIT, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_INTERMEDIATE, X_SEMI, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_INTERMEDIATE, X_PRIVATE, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_INTERMEDIATE, X_FINAL, A_NONE, S_GROUND);
+		on(S_CSI_INTERMEDIATE, X_CSI, A_NONE, S_GROUND);
+		on(S_CSI_IGNORE, X_INTERMEDIATE, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_IGNORE, X_DIGIT, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_IGNORE, X_SEMI, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_IGNORE, X_PRIVATE, A_NONE, S_CSI_IGNORE);
+		on(S_CSI_IGNORE, X_FINAL, A_NONE, S_GROUND);
+		on(S_CSI_IGNORE, X_CSI, A_NONE, S_GROUND);
+	}
+
+	private static void on(int state, int byteClass, int action, int next) {
+		TRANSITIONS[state][byteClass] = action << 4 | next;
+	}
+
+	// CSI final byte 0x40-0x7E to command, null when not supported
+	private static final COMMAND[] CSI_COMMANDS = new COMMAND[64];
+	static {
+		CSI_COMMANDS['A' - 0x40] = COMMAND.CURSOR_UP;
+		CSI_COMMANDS['B' - 0x40] = COMMAND.CURSOR_DOWN;
+		CSI_COMMANDS['C' - 0x40] = COMMAND.CURSOR_RIGHT;
+		CSI_COMMANDS['D' - 0x40] = COMMAND.CURSOR_LEFT;
+		CSI_COMMANDS['E' - 0x40] = COMMAND.CURSOR_NEXT_LINE;
+		CSI_COMMANDS['F' - 0x40] = COMMAND.CURSOR_PREVIOUS_LINE;
+		CSI_COMMANDS['G' - 0x40] = COMMAND.CURSOR_HORIZONTAL_ABSOLUTE;
+		CSI_COMMANDS['d' - 0x40] = COMMAND.LINE_POSITION_ABSOLUTE;
+		CSI_COMMANDS['f' - 0x40] = COMMAND.MOVE_CURSOR;
+		CSI_COMMANDS['H' - 0x40] = COMMAND.MOVE_CURSOR;
+		CSI_COMMANDS['J' - 0x40] = COMMAND.ERASE_IN_DISPLAY;
+		CSI_COMMANDS['K' - 0x40] = COMMAND.ERASE_IN_LINE;
+		CSI_COMMANDS['m' - 0x40] = COMMAND.SELECT_GRAPHIC_RENDITION;
+		CSI_COMMANDS['r' - 0x40] = COMMAND.SET_SCROLL_REGION;
+		CSI_COMMANDS['s' - 0x40] = COMMAND.SAVE_CURSOR_ATTRIBS;
+		CSI_COMMANDS['u' - 0x40] = COMMAND.RESTORE_CURSOR_ATTRIBS;
+	}
+
+	// ESC final byte 0x30-0x7E to command, null when not supported
+	private static final COMMAND[] ESC_COMMANDS = new COMMAND[0x80];
+	static {
+		ESC_COMMANDS['7'] = COMMAND.SAVE_CURSOR_ATTRIBS;
+		ESC_COMMANDS['8'] = COMMAND.RESTORE_CURSOR_ATTRIBS;
+		ESC_COMMANDS['D'] = COMMAND.INDEX;
+		ESC_COMMANDS['E'] = COMMAND.NEXT_LINE;
+		ESC_COMMANDS['M'] = COMMAND.REVERSE_INDEX;
+	}
+
 	// private members
 	private byte[] bytes;
-	private List<Token> tokens;
+	private ByteBuffer source; // file mapped by parse(Path), tokens refer to it when bytes is null
+	private TokenStore tokens = new TokenStore();
 	private Console console;
 	private byte[] fifo = new byte[3];
+	private boolean legacyMode = false;
+	private boolean attributes = false;
+	private String sourceId; // recorded with dumps
+	private int historyLines = 0; // scrollback caps, 0 for none
+	private int historyBytes = 0;
+	private Recorder recorder = new Recorder();
+	private Decoder decoder = new Decoder(recorder);
+	private static final ConsolePool CONSOLES = new ConsolePool(CONSOLE_POOL_SIZE);
+	private static volatile DumpWriter dumpWriter = DUMP_MODE ? new DumpWriter(new File(System.getProperty("java.io.tmpdir")), 64) : null;
+	private byte[] feedBuffer;
+	private ByteBuffer channelBuffer; // direct, used by render(ReadableByteChannel)
 	
 	// private classes as I was too lazy to create separate files
-	private class Console {
+	private static class Console implements TerminalEventHandler {
 		private int rows;
 		private int cols;
 		private boolean wrap;
-		private char[][] buffer; 
+		/*
+			Rows are stored as a ring, screen row y is buffer[row(y)]. Scrolling the
+			whole screen moves origin, scrolling a region moves row references, in
+			both cases no cell is copied. attrs and lineCache follow the same rows.
+			Rows not written since clear() all refer to one shared blank row and get
+			their own array on first write, see line(int), so tall consoles are cheap.
+			Rows handed to a Frame by snapshot() are shared the same way.
+		*/
+		private char[][] buffer; // [row][column]
+		private boolean[] owned; // row and its attributes are private to console, writable in place
+		private char[] blank; // shared row after clear()
+		private char[] empty; // shared row scrolled in, same as blank unless DEV_MODE
+		private short[] plain; // shared attributes of rows never written
+		private String blankLine;
+		private String emptyLine;
+		private int origin; // index in buffer of screen row 0
+		private int marginTop; // scroll region, screen rows inclusive
+		private int marginBottom;
+		private String[] lineCache; // serialised rows, null when changed since
+		private BitSet changed = new BitSet(); // screen rows changed since last getChangedRows()
+		private String screen; // cached toString(), null when any row changed
+		private short[][] attrs; // [row][column] packed ATTR_ bits, null unless enabled
+		private History history; // lines scrolled off the top, null unless enabled
+		private short pen; // attributes given to written text
 		private int savedCursorX;
 		private int savedCursorY;		
+		private short savedPen;
+		private boolean wrapPending; // last column written, next text goes to next row
 		public int cursorX;
 		public int cursorY;
 		
@@ -233,7 +583,18 @@ public class Vt100ish {
 			this.rows = rows;
 			this.cols = cols;
 			this.wrap = wrapping;
-			this.buffer = new char[cols][rows];
+			this.buffer = new char[rows][];
+			this.owned = new boolean[rows];
+			this.lineCache = new String[rows];
+			this.blank = new char[cols];
+			Arrays.fill(blank, (!Vt100ish.DEV_MODE) ? (char) 0x20 : (char) 0x7e);
+			this.empty = blank;
+			if (Vt100ish.DEV_MODE) {
+				empty = new char[cols];
+				Arrays.fill(empty, ' ');
+			}
+			this.blankLine = new String(blank);
+			this.emptyLine = new String(empty);
 			clear();
 		}
 		
@@ -241,28 +602,287 @@ public class Vt100ish {
 			this(80, 24, false);
 		}
 		
+		// releases written rows, O(rows) whatever the width
 		public void clear() {
-			for(int i = 0; i < rows; i++) {
-				for(int j = 0; j < cols; j++) {
-					
-					if (!Vt100ish.DEV_MODE) {
-						buffer[j][i] = 0x20;
-					} else {
-						buffer[j][i] = 0x7e;
-					}
+			Arrays.fill(buffer, blank);
+			Arrays.fill(owned, false);
+			if (attrs != null) {
+				Arrays.fill(attrs, plain);
+			}
+			Arrays.fill(lineCache, null);
+			home();
+		}
+		
+		/*
+			Blanks console for reuse keeping rows it owns, they are filled in place from
+			blank template so that a reused console allocates no screen memory.
+		*/
+		public void reset() {
+			for (int i = 0; i < rows; i++) {
+				if (owned[i]) {
+					System.arraycopy(blank, 0, buffer[i], 0, cols);
+					if ((attrs != null) && (attrs[i] != plain)) System.arraycopy(plain, 0, attrs[i], 0, cols);
+					lineCache[i] = blankLine;
+				} else {
+					buffer[i] = blank;
+					if (attrs != null) attrs[i] = plain;
+					lineCache[i] = null;
 				}
 			}
+			if (history != null) history.clear();
+			home();
+		}
+		
+		// state of blank console
+		private void home() {
+			changed.set(0, rows);
+			screen = null;
+			origin = 0;
+			marginTop = 0;
+			marginBottom = rows - 1;
+			pen = 0;
+			wrapPending = false;
 			cursorX = 0;
 			cursorY = 0;
 		}
 		
-		public void write(int x, int y, char[] src) {
+		// allocates attribute plane, SGR is ignored until called
+		public void enableAttributes() {
+			if (attrs == null) {
+				plain = new short[cols];
+				attrs = new short[rows][];
+				Arrays.fill(attrs, plain);
+			}
+		}
+		
+		public int getAttributes(int y, int x) {
+			return (attrs != null) ? attrs[row(y)][x] : 0;
+		}
+		
+		public boolean hasAttributes() {
+			return attrs != null;
+		}
+		
+		public void enableHistory(int maxLines, int maxBytes) {
+			if (history == null) {
+				history = new History(maxLines, maxBytes);
+			} else {
+				history.limit(maxLines, maxBytes);
+			}
+		}
+		
+		public void disableHistory() {
+			history = null;
+		}
+		
+		public History getHistory() {
+			return history;
+		}
+		
+		// index in buffer of screen row y
+		private int row(int y) {
+			int i = origin + y;
+			return (i >= rows) ? i - rows : i;
+		}
+		
+		// copies row i and its attributes when shared, before they are written
+		private void own(int i) {
+			if (!owned[i]) {
+				buffer[i] = buffer[i].clone();
+				if ((attrs != null) && (attrs[i] != plain)) attrs[i] = attrs[i].clone();
+				owned[i] = true;
+			}
+		}
+		
+		// row i of buffer for writing
+		private char[] line(int i) {
+			own(i);
+			return buffer[i];
+		}
+		
+		private short[] attr(int i) {
+			own(i);
+			if (attrs[i] == plain) {
+				attrs[i] = new short[cols];
+			}
+			return attrs[i];
+		}
+		
+		// to be called for every row whose content is modified
+		private void touch(int y) {
+			lineCache[row(y)] = null;
+			changed.set(y);
+			screen = null;
+		}
+		
+		// blanks row i of buffer, which is about to enter the screen
+		private void recycle(int i) {
+			if (owned[i]) {
+				Arrays.fill(buffer[i], ' ');
+				if ((attrs != null) && (attrs[i] != plain)) Arrays.fill(attrs[i], (short) 0);
+			} else {
+				buffer[i] = empty;
+				if (attrs != null) attrs[i] = plain;
+			}
+			lineCache[i] = null;
+		}
+		
+		// scrolls screen rows [top, bottom] up one line, blank line enters at bottom
+		private void scrollUp(int top, int bottom) {
+			if ((top == 0) && (history != null)) {
+				history.add(buffer[origin]);
+			}
+			if ((top == 0) && (bottom == rows - 1)) {
+				recycle(origin);
+				origin = row(1);
+			} else {
+				int first = row(top);
+				char[] line = buffer[first];
+				short[] attr = (attrs != null) ? attrs[first] : null;
+				boolean own = owned[first];
+				for (int y = top; y < bottom; y++) {
+					int to = row(y);
+					int from = row(y + 1);
+					buffer[to] = buffer[from];
+					owned[to] = owned[from];
+					lineCache[to] = lineCache[from];
+					if (attrs != null) attrs[to] = attrs[from];
+				}
+				int last = row(bottom);
+				buffer[last] = line;
+				owned[last] = own;
+				if (attrs != null) attrs[last] = attr;
+				recycle(last);
+			}
+			changed.set(top, bottom + 1);
+			screen = null;
+		}
+		
+		// scrolls screen rows [top, bottom] down one line, blank line enters at top
+		private void scrollDown(int top, int bottom) {
+			if ((top == 0) && (bottom == rows - 1)) {
+				origin = row(rows - 1);
+				recycle(origin);
+			} else {
+				int last = row(bottom);
+				char[] line = buffer[last];
+				short[] attr = (attrs != null) ? attrs[last] : null;
+				boolean own = owned[last];
+				for (int y = bottom; y > top; y--) {
+					int to = row(y);
+					int from = row(y - 1);
+					buffer[to] = buffer[from];
+					owned[to] = owned[from];
+					lineCache[to] = lineCache[from];
+					if (attrs != null) attrs[to] = attrs[from];
+				}
+				int first = row(top);
+				buffer[first] = line;
+				owned[first] = own;
+				if (attrs != null) attrs[first] = attr;
+				recycle(first);
+			}
+			changed.set(top, bottom + 1);
+			screen = null;
+		}
+		
+		private void moveTo(int x, int y) {
+			if ((x != cursorX) || (y != cursorY)) wrapPending = false;
 			cursorX = x;
-			cursorY = y;		
-			for (int i = 0; i < src.length ; i++) {
-				if (cursorX == cols) break;
-				buffer[cursorX++][cursorY] = src[i];
+			cursorY = y;
+		}
+		
+		/*
+			Number of cells of a len long run that fit on cursor row from cursor. When
+			wrapping, a pending wrap is taken first, moving to start of next row.
+		*/
+		private int span(int len) {
+			if (wrap && (wrapPending || (cursorX >= cols))) {
+				wrapPending = false;
+				cursorX = 0;
+				onIndex();
+			}
+			return Math.min(len, cols - cursorX);
+		}
+		
+		// moves cursor past n written cells, on last column wrap is left pending as DECAWM
+		private void advance(int n) {
+			cursorX += n;
+			if (wrap && (cursorX == cols)) {
+				cursorX = cols - 1;
+				wrapPending = true;
+			}
+		}
+		
+		// text past the last column is dropped when not wrapping
+		public void write(int x, int y, char[] src) {
+			moveTo(x, y);
+			int off = 0;
+			int len = src.length;
+			while (len > 0) {
+				int n = span(len);
+				if (n <= 0) break;
+				System.arraycopy(src, off, line(row(cursorY)), cursorX, n);
+				if (attrs != null) Arrays.fill(attr(row(cursorY)), cursorX, cursorX + n, pen);
+				touch(cursorY);
+				advance(n);
+				off += n;
+				len -= n;
+				if (!wrap) break;
 			}
+			devDisplay();
+		}
+		
+		/*
+			Writes Latin-1 bytes src[off, off+len) widening them straight into buffer a
+			row at a time, text past the last column is dropped when not wrapping.
+		*/
+		public void write(int x, int y, byte[] src, int off, int len) {
+			moveTo(x, y);
+			while (len > 0) {
+				int n = span(len);
+				if (n <= 0) break;
+				char[] line = line(row(cursorY));
+				int x0 = cursorX;
+				for (int i = 0; i < n; i++) {
+					line[x0 + i] = (char) (src[off + i] & 0xff);
+				}
+				if (attrs != null) Arrays.fill(attr(row(cursorY)), x0, x0 + n, pen);
+				touch(cursorY);
+				advance(n);
+				off += n;
+				len -= n;
+				if (!wrap) break;
+			}
+			devDisplay();
+		}
+		
+		// as write(int, int, byte[], int, int) reading src with absolute get()
+		public void write(int x, int y, ByteBuffer src, int off, int len) {
+			moveTo(x, y);
+			while (len > 0) {
+				int n = span(len);
+				if (n <= 0) break;
+				char[] line = line(row(cursorY));
+				int x0 = cursorX;
+				for (int i = 0; i < n; i++) {
+					line[x0 + i] = (char) (src.get(off + i) & 0xff);
+				}
+				if (attrs != null) Arrays.fill(attr(row(cursorY)), x0, x0 + n, pen);
+				touch(cursorY);
+				advance(n);
+				off += n;
+				len -= n;
+				if (!wrap) break;
+			}
+			devDisplay();
+		}
+		
+		public void write(char[] src) {
+			write(cursorX, cursorY, src);
+		}
+		
+		private void devDisplay() {
 			if (Vt100ish.DEV_MODE) {
 				System.out.print(String.format("%c[%d;%df",0x1B,0,0));
 				System.out.print(this.toString());
@@ -272,111 +892,1562 @@ public class Vt100ish {
 			}
 		}
 		
-		public void write(char[] src) {
-			write(cursorX, cursorY, src);
+		public void display() {
+			System.out.print(this.toString());
+		}
+		
+		// rows are serialised again only when changed since previous call
+		@Override
+		public String toString() {
+			if (screen == null) {
+				StringBuilder sb = new StringBuilder(rows * (cols + 1));
+				for (int y = 0; y < rows; y++) {
+					sb.append(getRow(y));
+					sb.append('\n');
+				}
+				screen = sb.toString();
+			}
+			return screen;
+		}
+		
+		/*
+			Immutable copy of screen sharing row storage with console, rows are copied
+			by console on their next write. O(rows) whatever the width.
+		*/
+		public Frame snapshot() {
+			char[][] lines = new char[rows][];
+			short[][] cells = (attrs != null) ? new short[rows][] : null;
+			String[] text = new String[rows];
+			for (int y = 0; y < rows; y++) {
+				int i = row(y);
+				lines[y] = buffer[i];
+				if (cells != null) cells[y] = attrs[i];
+				text[y] = lineCache[i];
+			}
+			Arrays.fill(owned, false);
+			return new Frame(cols, lines, cells, text, cursorX, cursorY);
+		}
+		
+		public String getRow(int y) {
+			int i = row(y);
+			if (lineCache[i] == null) {
+				char[] line = buffer[i];
+				lineCache[i] = (line == blank) ? blankLine : ((line == empty) ? emptyLine : new String(line));
+			}
+			return lineCache[i];
+		}
+		
+		// indices of rows modified since previous call, ascending
+		public int[] getChangedRows() {
+			int[] result = new int[changed.cardinality()];
+			int n = 0;
+			for (int y = changed.nextSetBit(0); (y >= 0) && (n < result.length); y = changed.nextSetBit(y + 1)) {
+				result[n++] = y;
+			}
+			changed.clear();
+			return result;
+		}
+		
+		public int getRowsCount() {
+			return rows;
+		}
+		
+		public int getColsCount() {
+			return cols;
+		}
+		
+		public boolean getWrapping() {
+			return wrap;
+		}
+		
+		public void saveCursorPos() {
+			savedCursorX = cursorX;
+			savedCursorY = cursorY;
+			savedPen = pen;
+		}
+		
+		public void restoreCursorPos() {
+			cursorX = savedCursorX;
+			cursorY = savedCursorY;
+			pen = savedPen;
+			wrapPending = false;
+		}
+		
+		public void onCursorHome() {
+			moveTo(0, 0);
+		}
+		
+		/*
+			Cursor motion keeps cursor on screen whatever the arguments, so that text
+			and erase commands never index outside buffer. Counts of 0 move by 1.
+			Up and down stop at scroll margins when starting inside them, as VT100.
+		*/
+		private int clamp(int v, int max) {
+			return Math.max(0, Math.min(v, max));
+		}
+		
+		public void onMoveCursor(int row, int col) {
+			wrapPending = false;
+			cursorY = clamp(row - 1, rows - 1); // line offset to 0 index
+			cursorX = clamp(col - 1, cols - 1); // column offset to 0 index
+		}
+		
+		public void onCursorUp(int n) {
+			wrapPending = false;
+			cursorY = Math.max(cursorY - Math.max(n, 1), (cursorY >= marginTop) ? marginTop : 0);
+		}
+		
+		public void onCursorDown(int n) {
+			wrapPending = false;
+			cursorY = Math.min(cursorY + Math.max(n, 1), (cursorY <= marginBottom) ? marginBottom : rows - 1);
+		}
+		
+		public void onCursorRight(int n) {
+			wrapPending = false;
+			cursorX = Math.min(cursorX + Math.max(n, 1), cols - 1);
+		}
+		
+		public void onCursorLeft(int n) {
+			wrapPending = false;
+			cursorX = Math.max(Math.min(cursorX, cols - 1) - Math.max(n, 1), 0);
+		}
+		
+		public void onCursorNextLine(int n) {
+			onCursorDown(n);
+			cursorX = 0;
+		}
+		
+		public void onCursorPreviousLine(int n) {
+			onCursorUp(n);
+			cursorX = 0;
+		}
+		
+		public void onCursorColumn(int col) {
+			wrapPending = false;
+			cursorX = clamp(col - 1, cols - 1);
+		}
+		
+		public void onCursorRow(int row) {
+			wrapPending = false;
+			cursorY = clamp(row - 1, rows - 1);
+		}
+		
+		// cursor is not moved by erase commands
+		public void onEraseInDisplay(int mode) {
+			if ((cursorY < 0) || (cursorY >= rows)) return;
+			switch (mode) {
+				case 0:
+					// From Cursor to End of Screen
+					erase(cursorY, cursorX, cols);
+					for (int y = cursorY + 1; y < rows; y++) erase(y, 0, cols);
+					break;
+				case 1:
+					// From Beginning of Screen to Cursor
+					for (int y = 0; y < cursorY; y++) erase(y, 0, cols);
+					erase(cursorY, 0, cursorX + 1);
+					break;
+				case 2:
+					// Entire Screen
+					for (int y = 0; y < rows; y++) erase(y, 0, cols);
+					break;
+			}
+		}
+		
+		public void onEraseInLine(int mode) {
+			if ((cursorY < 0) || (cursorY >= rows)) return;
+			switch (mode) {
+				case 0:
+					// From Cursor to End of Line
+					erase(cursorY, cursorX, cols);
+					break;
+				case 1:
+					//  From Beginning of Line to Cursor
+					erase(cursorY, 0, cursorX + 1);
+					break;
+				case 2:
+					// Entire Line
+					erase(cursorY, 0, cols);
+					break;
+			}
+		}
+		
+		// blanks columns [from, to) of row y in place
+		private void erase(int y, int from, int to) {
+			from = Math.max(from, 0);
+			to = Math.min(to, cols);
+			if (from < to) {
+				int i = row(y);
+				if ((buffer[i] != empty) || ((attrs != null) && (attrs[i] != plain))) {
+					Arrays.fill(line(i), from, to, ' ');
+					if ((attrs != null) && (attrs[i] != plain)) Arrays.fill(attrs[i], from, to, (short) 0);
+				}
+				touch(y);
+			}
+		}
+		
+		public void onSelectGraphicRendition(int[] params, int off, int n) {
+			if (attrs == null) return;
+			int p = pen;
+			for (int i = off; i < off + n; i++) {
+				int v = params[i];
+				switch (v) {
+					case 0: p = 0; break;
+					case 1: p |= ATTR_BOLD; break;
+					case 4: p |= ATTR_UNDERLINE; break;
+					case 5: p |= ATTR_BLINK; break;
+					case 7: p |= ATTR_REVERSE; break;
+					case 22: p &= ~ATTR_BOLD; break;
+					case 24: p &= ~ATTR_UNDERLINE; break;
+					case 25: p &= ~ATTR_BLINK; break;
+					case 27: p &= ~ATTR_REVERSE; break;
+					case 39: p &= ~ATTR_FG_MASK; break;
+					case 49: p &= ~ATTR_BG_MASK; break;
+					case 38:
+					case 48:
+						// extended colours are not kept, skip 5;n or 2;r;g;b
+						if (i + 1 < off + n) i += (params[i + 1] == 5) ? 2 : ((params[i + 1] == 2) ? 4 : 1);
+						break;
+					default:
+						if ((v >= 30) && (v <= 37)) p = (p & ~ATTR_FG_MASK) | (v - 30 + 1);
+						else if ((v >= 40) && (v <= 47)) p = (p & ~ATTR_BG_MASK) | ((v - 40 + 1) << ATTR_BG_SHIFT);
+						else if ((v >= 90) && (v <= 97)) p = (p & ~ATTR_FG_MASK) | (v - 90 + 9);
+						else if ((v >= 100) && (v <= 107)) p = (p & ~ATTR_BG_MASK) | ((v - 100 + 9) << ATTR_BG_SHIFT);
+				}
+			}
+			pen = (short) p;
+		}
+		
+		public void onSaveCursor() {
+			saveCursorPos();
+		}
+		
+		public void onRestoreCursor() {
+			restoreCursorPos();
+		}
+		
+		public void onLineFeed() {
+			onIndex();
+		}
+		
+		public void onCarriageReturn() {
+			wrapPending = false;
+			cursorX = 0;
+		}
+		
+		// scrolls only when cursor is on bottom margin, stops at last row otherwise
+		public void onIndex() {
+			wrapPending = false;
+			if (cursorY == marginBottom) {
+				scrollUp(marginTop, marginBottom);
+			} else if (cursorY < rows - 1) {
+				cursorY++;
+			}
+		}
+		
+		public void onReverseIndex() {
+			wrapPending = false;
+			if (cursorY == marginTop) {
+				scrollDown(marginTop, marginBottom);
+			} else if (cursorY > 0) {
+				cursorY--;
+			}
+		}
+		
+		public void onNextLine() {
+			cursorX = 0;
+			onIndex();
+		}
+		
+		// 1 based inclusive margins, 0 is default, region of less than 2 rows is ignored
+		public void onSetScrollRegion(int top, int bottom) {
+			top = (top > 0) ? top - 1 : 0;
+			bottom = ((bottom > 0) && (bottom <= rows)) ? bottom - 1 : rows - 1;
+			if (top < bottom) {
+				marginTop = top;
+				marginBottom = bottom;
+				moveTo(0, 0);
+			}
+		}
+		
+		public void onText(byte[] buf, int off, int len) {
+			write(cursorX, cursorY, buf, off, len);
+		}
+		
+		public void onText(ByteBuffer buf, int off, int len) {
+			write(cursorX, cursorY, buf, off, len);
+		}
+	}
+	
+	private class Token {
+		int start; // start offset
+		int end; // end offset
+		COMMAND type; // type of token
+		
+		public Token() { }
+		
+		public Token(Token t) {
+			start = t.getStartOffset();
+			end = t.getEndOffset();
+			type = t.getType();
+		}
+		
+		public int getStartOffset() {
+			return start;
+		}
+		
+		public void setStartOffset(int n) {
+			start = n;
+		}
+		
+		public int getEndOffset() {
+			return end;
+		}
+		
+		public void setEndOffset(int n) {
+			end = n;
+		}
+		
+		public COMMAND getType() {
+			return type;
+		}
+		
+		public void setType(COMMAND n) {
+			type = n;
+		}
+		
+		public int length() {
+			return end - start + 1;
+		}
+		
+		public byte[] getData() {
+			if ((Vt100ish.this.bytes != null) && (start <= end) && (end < Vt100ish.this.bytes.length)) {			
+				return Arrays.copyOfRange(Vt100ish.this.bytes, start, Math.min(end+1, Vt100ish.this.bytes.length-1));
+			}
+			return new byte[] {0x00};
+		}
+		
+		@Override
+		public String toString(){
+			return String.format("[%d, %d, %d, %s]", start, end, length(), type);
+		}
+	}
+
+	/*
+		Table driven decoder replacing classifyToken()/splitToken() regex chain.
+		Each byte is looked up in BYTE_CLASS and the pair (state, class) in TRANSITIONS
+		gives the action to perform and the next state. Whole ECMA-48 ESC and CSI
+		grammar is recognised, CSI commands are looked up by final byte in CSI_COMMANDS.
+		Sequences that are not supported are consumed up to their final byte and
+		dropped, text following them is kept.
+		Runs in linear time, every decoded command and text run is pushed to the
+		TerminalEventHandler as soon as it is complete.
+		State is kept between feed() calls so a sequence may span several chunks.
+		Bytes preceding first ESC are dropped as they were by the regex chain.
+		A CSI sequence keeps at most MAX_PARAMS parameters, each capped to MAX_VALUE.
+		Parameters past MAX_PARAMS are dropped and counted, see getDroppedParams(),
+		so an SGR longer than that applies only its first MAX_PARAMS parameters.
+	*/
+	public static class Decoder {
+		private static final int MAX_PARAMS = 16;
+		private static final int MAX_VALUE = 9999;
+
+		private TerminalEventHandler handler;
+		private int state = S_GROUND;
+		private int[] params = new int[MAX_PARAMS];
+		private int nParams; // number of params completed by ';'
+		private int value; // param being accumulated
+		private int paramBytes;
+		private long droppedParams; // params past MAX_PARAMS of dispatched sequences
+		private int seqStart; // offset of sequence being decoded in current chunk
+		private int position; // offset of byte being decoded in current chunk
+
+		public Decoder(TerminalEventHandler handler) {
+			this.handler = handler;
+		}
+
+		public void setHandler(TerminalEventHandler handler) {
+			this.handler = handler;
+		}
+
+		// start of new capture, resynchronises on first ESC
+		public void reset() {
+			state = S_IGNORE;
+		}
+
+		// start of live stream, first bytes are text, as for a new Decoder
+		public void start() {
+			state = S_GROUND;
+		}
+
+		/*
+			Text runs are handed to handler whole, any other byte is stepped through
+			act() which is shared by both feed() variants.
+		*/
+		public void feed(byte[] buf, int off, int len) {
+			int to = off + len;
+			int textStart = -1;
+			seqStart = off;
+			for (int i = off; i < to; i++) {
+				int b = buf[i] & 0xff;
+				int tr = TRANSITIONS[state][BYTE_CLASS[b]];
+				if ((tr >> 4) == A_PRINT) {
+					if (textStart < 0) textStart = i;
+					continue;
+				}
+				if (textStart >= 0) {
+					handler.onText(buf, textStart, i - textStart);
+					textStart = -1;
+				}
+				act(tr, b, i);
+			}
+			if (textStart >= 0) {
+				handler.onText(buf, textStart, to - textStart);
+			}
+		}
+
+		/*
+			Decodes buf from position to limit. Direct buffers are read in place with
+			absolute get(), text is handed to handler as a range of buf and offsets
+			given by getSequenceStart() and getPosition() are indices in buf. Heap
+			buffers are decoded as their backing array by feed(byte[], int, int), text
+			goes to onText(byte[], int, int) and offsets are indices in the array, which
+			differ from buffer indices for a slice or a wrapped array range.
+		*/
+		public void feed(ByteBuffer buf) {
+			if (buf.hasArray()) {
+				feed(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+				buf.position(buf.limit());
+				return;
+			}
+			int to = buf.limit();
+			int textStart = -1;
+			seqStart = buf.position();
+			for (int i = buf.position(); i < to; i++) {
+				int b = buf.get(i) & 0xff;
+				int tr = TRANSITIONS[state][BYTE_CLASS[b]];
+				if ((tr >> 4) == A_PRINT) {
+					if (textStart < 0) textStart = i;
+					continue;
+				}
+				if (textStart >= 0) {
+					handler.onText(buf, textStart, i - textStart);
+					textStart = -1;
+				}
+				act(tr, b, i);
+			}
+			if (textStart >= 0) {
+				handler.onText(buf, textStart, to - textStart);
+			}
+			buf.position(to);
+		}
+
+		// takes transition tr on byte b at offset i, but for A_PRINT
+		private void act(int tr, int b, int i) {
+			state = tr & 0x0f;
+			switch (tr >> 4) {
+				case A_ESC_ENTRY:
+					seqStart = i;
+					break;
+				case A_CSI_ENTRY:
+					clearParams();
+					break;
+				case A_PARAM:
+					param(b);
+					break;
+				case A_SEPARATOR:
+					separator();
+					break;
+				case A_ESC_DISPATCH:
+					position = i;
+					emit(ESC_COMMANDS[b], 0);
+					break;
+				case A_EXECUTE:
+					// may arrive inside a sequence, whose start is kept
+					int sequence = seqStart;
+					seqStart = i;
+					position = i;
+					emit((b == 0x0d) ? COMMAND.CARRIAGE_RETURN : COMMAND.LINE_FEED, 0);
+					seqStart = sequence;
+					break;
+				case A_CSI_DISPATCH:
+					position = i;
+					emit(dispatch(b), complete());
+					break;
+				default:
+					// A_NONE, byte skipped
+					break;
+			}
+		}
+
+		// number of CSI parameters dropped so far because a sequence had more than MAX_PARAMS
+		public long getDroppedParams() {
+			return droppedParams;
+		}
+
+		// offset in current chunk of the sequence being dispatched to handler
+		public int getSequenceStart() {
+			return seqStart;
+		}
+
+		// offset in current chunk of the last byte of the sequence being dispatched
+		public int getPosition() {
+			return position;
+		}
+
+		private void emit(COMMAND command, int n) {
+			if (command != null) {
+				fire(handler, command, params, 0, n);
+			}
+		}
+
+		private void clearParams() {
+			nParams = 0;
+			value = 0;
+			paramBytes = 0;
+		}
+
+		// stores param being accumulated, returns number of params with empty ones as 0
+		private int complete() {
+			if (nParams < MAX_PARAMS) params[nParams] = value;
+			else droppedParams += nParams + 1 - MAX_PARAMS;
+			return Math.min(nParams + 1, MAX_PARAMS);
+		}
+
+		private void param(int b) {
+			value = Math.min(value * 10 + (b - '0'), MAX_VALUE);
+			paramBytes++;
+		}
+
+		private void separator() {
+			if (nParams < MAX_PARAMS) params[nParams] = value;
+			nParams++;
+			value = 0;
+			paramBytes++;
+		}
+
+		// CSI-final state, O(1) lookup of final byte
+		private COMMAND dispatch(int b) {
+			COMMAND command = CSI_COMMANDS[b - 0x40];
+			if ((command == COMMAND.MOVE_CURSOR) && (paramBytes == 0)) {
+				return COMMAND.CURSOR_HOME;
+			}
+			return command;
+		}
+	}
+
+	/*
+		Records decoded commands in tokens, offsets are those of bytes being parsed.
+	*/
+	private class Recorder implements TerminalEventHandler {
+		private int[] args = new int[2];
+		
+		private void add(COMMAND command, int n) {
+			tokens.add(decoder.getSequenceStart(), decoder.getPosition(), command, args, 0, n);
+		}
+		
+		private void add1(COMMAND command, int a) {
+			args[0] = a;
+			add(command, 1);
+		}
+		
+		public void onCursorHome() {
+			add(COMMAND.CURSOR_HOME, 0);
+		}
+		
+		public void onMoveCursor(int row, int col) {
+			args[0] = row;
+			args[1] = col;
+			add(COMMAND.MOVE_CURSOR, 2);
+		}
+		
+		public void onCursorUp(int n) {
+			add1(COMMAND.CURSOR_UP, n);
+		}
+		
+		public void onCursorDown(int n) {
+			add1(COMMAND.CURSOR_DOWN, n);
+		}
+		
+		public void onCursorRight(int n) {
+			add1(COMMAND.CURSOR_RIGHT, n);
+		}
+		
+		public void onCursorLeft(int n) {
+			add1(COMMAND.CURSOR_LEFT, n);
+		}
+		
+		public void onCursorNextLine(int n) {
+			add1(COMMAND.CURSOR_NEXT_LINE, n);
+		}
+		
+		public void onCursorPreviousLine(int n) {
+			add1(COMMAND.CURSOR_PREVIOUS_LINE, n);
+		}
+		
+		public void onCursorColumn(int col) {
+			add1(COMMAND.CURSOR_HORIZONTAL_ABSOLUTE, col);
+		}
+		
+		public void onCursorRow(int row) {
+			add1(COMMAND.LINE_POSITION_ABSOLUTE, row);
+		}
+		
+		public void onEraseInDisplay(int mode) {
+			add1(COMMAND.ERASE_IN_DISPLAY, mode);
+		}
+		
+		public void onEraseInLine(int mode) {
+			add1(COMMAND.ERASE_IN_LINE, mode);
+		}
+		
+		public void onSelectGraphicRendition(int[] params, int off, int n) {
+			tokens.add(decoder.getSequenceStart(), decoder.getPosition(), COMMAND.SELECT_GRAPHIC_RENDITION, params, off, n);
+		}
+		
+		public void onSaveCursor() {
+			add(COMMAND.SAVE_CURSOR_ATTRIBS, 0);
+		}
+		
+		public void onRestoreCursor() {
+			add(COMMAND.RESTORE_CURSOR_ATTRIBS, 0);
+		}
+		
+		public void onLineFeed() {
+			add(COMMAND.LINE_FEED, 0);
+		}
+		
+		public void onCarriageReturn() {
+			add(COMMAND.CARRIAGE_RETURN, 0);
+		}
+		
+		public void onIndex() {
+			add(COMMAND.INDEX, 0);
+		}
+		
+		public void onReverseIndex() {
+			add(COMMAND.REVERSE_INDEX, 0);
+		}
+		
+		public void onNextLine() {
+			add(COMMAND.NEXT_LINE, 0);
+		}
+		
+		public void onSetScrollRegion(int top, int bottom) {
+			args[0] = top;
+			args[1] = bottom;
+			add(COMMAND.SET_SCROLL_REGION, 2);
+		}
+		
+		public void onText(byte[] buf, int off, int len) {
+			tokens.add(off, off + len - 1, COMMAND.DATA);
+		}
+		
+		public void onText(ByteBuffer buf, int off, int len) {
+			tokens.add(off, off + len - 1, COMMAND.DATA);
+		}
+	}
+
+	/*
+		Token stream kept as parallel primitive arrays rather than Token objects,
+		the arrays grow by doubling and are reused by subsequent parse() calls.
+	*/
+	private static class TokenStore {
+		private static final int INITIAL_CAPACITY = 256;
+		private static final COMMAND[] COMMANDS = COMMAND.values();
+		private static final byte DATA = (byte) COMMAND.DATA.ordinal();
+		
+		private int[] start = new int[INITIAL_CAPACITY];
+		private int[] end = new int[INITIAL_CAPACITY];
+		private byte[] type = new byte[INITIAL_CAPACITY];
+		private int[] firstParam = new int[INITIAL_CAPACITY]; // index into param
+		private byte[] paramCount = new byte[INITIAL_CAPACITY];
+		private int[] param = new int[INITIAL_CAPACITY]; // decoded params of all tokens
+		private int size;
+		private int paramSize;
+		
+		public void add(int startOffset, int endOffset, COMMAND command) {
+			add(startOffset, endOffset, command, null, 0, 0);
+		}
+		
+		public void add(int startOffset, int endOffset, COMMAND command, int[] params, int off, int n) {
+			if (size == type.length) {
+				int capacity = size << 1;
+				start = Arrays.copyOf(start, capacity);
+				end = Arrays.copyOf(end, capacity);
+				type = Arrays.copyOf(type, capacity);
+				firstParam = Arrays.copyOf(firstParam, capacity);
+				paramCount = Arrays.copyOf(paramCount, capacity);
+			}
+			if (paramSize + n > param.length) {
+				param = Arrays.copyOf(param, Math.max(param.length << 1, paramSize + n));
+			}
+			start[size] = startOffset;
+			end[size] = endOffset;
+			type[size] = (byte) command.ordinal();
+			firstParam[size] = paramSize;
+			paramCount[size] = (byte) n;
+			if (n > 0) {
+				System.arraycopy(params, off, param, paramSize, n);
+				paramSize += n;
+			}
+			size++;
+		}
+		
+		public void clear() {
+			size = 0;
+			paramSize = 0;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public Cursor cursor() {
+			return new Cursor();
+		}
+		
+		// pushes stored tokens to handler, DATA payload is read from src
+		public void replay(TerminalEventHandler handler, byte[] src) {
+			for (int i = 0; i < size; i++) {
+				if (type[i] == DATA) {
+					handler.onText(src, start[i], end[i] - start[i] + 1);
+				} else {
+					fire(handler, COMMANDS[type[i]], param, firstParam[i], paramCount[i]);
+				}
+			}
+		}
+		
+		// as replay(TerminalEventHandler, byte[]) with offsets being indices in src
+		public void replay(TerminalEventHandler handler, ByteBuffer src) {
+			for (int i = 0; i < size; i++) {
+				if (type[i] == DATA) {
+					handler.onText(src, start[i], end[i] - start[i] + 1);
+				} else {
+					fire(handler, COMMANDS[type[i]], param, firstParam[i], paramCount[i]);
+				}
+			}
+		}
+		
+		// read-only forward view of the store, next() must be called before first access
+		public class Cursor {
+			private int index = -1;
+			
+			public boolean next() {
+				return ++index < size;
+			}
+			
+			public int getStartOffset() {
+				return start[index];
+			}
+			
+			public int getEndOffset() {
+				return end[index];
+			}
+			
+			public COMMAND getType() {
+				return COMMANDS[type[index]];
+			}
+			
+			public int length() {
+				return end[index] - start[index] + 1;
+			}
+		}
+	}
+	
+	/*
+		Immutable screen taken by snapshot(), safe to read from other threads while
+		the console it was taken from keeps being updated.
+	*/
+	public static final class Frame {
+		private final int cols;
+		private final char[][] lines; // [row][column], never written
+		private final short[][] attrs; // null when attributes not enabled
+		private final String[] text; // serialised rows, filled on demand
+		private final int cursorX;
+		private final int cursorY;
+		
+		private Frame(int cols, char[][] lines, short[][] attrs, String[] text, int cursorX, int cursorY) {
+			this.cols = cols;
+			this.lines = lines;
+			this.attrs = attrs;
+			this.text = text;
+			this.cursorX = cursorX;
+			this.cursorY = cursorY;
+		}
+		
+		public int getRowsCount() {
+			return lines.length;
+		}
+		
+		public int getColsCount() {
+			return cols;
+		}
+		
+		public int getCursorX() {
+			return cursorX;
+		}
+		
+		public int getCursorY() {
+			return cursorY;
+		}
+		
+		public char getChar(int row, int col) {
+			return lines[row][col];
+		}
+		
+		public int getAttributes(int row, int col) {
+			return (attrs != null) ? attrs[row][col] : 0;
+		}
+		
+		// racing threads may both serialise a row, either result is the same
+		public String getRow(int y) {
+			String line = text[y];
+			if (line == null) {
+				line = new String(lines[y]);
+				text[y] = line;
+			}
+			return line;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(lines.length * (cols + 1));
+			for (int y = 0; y < lines.length; y++) {
+				sb.append(getRow(y));
+				sb.append('\n');
+			}
+			return sb.toString();
+		}
+	}
+	
+	/*
+		Writes parse() input to a DumpArchive on a background thread so callers never
+		wait on disk. Inputs are queued up to capacity entries and maxQueuedBytes of
+		input, then dropped or, when set blocking, the caller waits. An input larger
+		than maxQueuedBytes is taken when nothing else is queued. Only one in every
+		sampling inputs is kept.
+		Records are appended to the current segment, a new one is started before
+		one would exceed maxFileSize. maxFiles applies per writer, not per directory:
+		past it the oldest of the segments this writer created, and of those found in
+		directory when it started, is deleted unless a writer, of this or another JVM,
+		still has it open. Settings may be changed at any time, they apply to
+		following inputs.
+		The writer thread is a daemon started by first input, a shutdown hook closes
+		the writer at JVM exit so queued inputs are written. close() may be called
+		earlier, e.g. before setDumpWriter() replaces it.
+	*/
+	public static class DumpWriter implements Runnable {
+		private static final Dump STOP = new Dump(null, null);
+		private static final int MAX_SOURCE = 0xffff; // UTF-8 bytes of source id kept
+		private static final Set<File> OPEN = new HashSet<File>(); // segments written in this JVM
+		
+		// queued input, data from position to limit
+		private static class Dump {
+			private ByteBuffer data;
+			private int length;
+			private String source;
+			private long time = System.currentTimeMillis();
+			
+			public Dump(ByteBuffer data, String source) {
+				this.data = data;
+				this.length = (data != null) ? data.remaining() : 0;
+				this.source = source;
+			}
+		}
+		
+		private File directory;
+		private ArrayBlockingQueue<Dump> queue;
+		private volatile boolean blocking = false;
+		private volatile int sampling = 1;
+		private volatile long maxFileSize = 64L << 20;
+		private volatile int maxFiles = 16;
+		private volatile boolean compress = false;
+		private volatile long maxQueuedBytes = 64L << 20;
+		private AtomicLong submitted = new AtomicLong();
+		private AtomicLong dropped = new AtomicLong();
+		private long pending; // queued and not yet written, guarded by this
+		private long queuedBytes; // input length of pending, guarded by this
+		private Thread thread;
+		private Thread hook; // calls close() at JVM exit
+		private volatile boolean closed;
+		// used by writer thread only
+		private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS");
+		private ArrayDeque<File> segments = new ArrayDeque<File>();
+		private File segment; // open one, locked against rotation by other JVMs
+		private DataOutputStream out;
+		private DataOutputStream index;
+		private long segmentSize;
+		private int segmentCount;
+		private Deflater deflater;
+		private byte[] deflated = new byte[0];
+		private byte[] chunk; // direct input is copied through
+		
+		public DumpWriter(File directory, int capacity) {
+			this.directory = directory;
+			this.queue = new ArrayBlockingQueue<Dump>(capacity);
+			dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+		
+		// caller waits for room in full queue rather than input being dropped
+		public void setBlocking(boolean blocking) {
+			this.blocking = blocking;
+		}
+		
+		// keeps one input in n, 1 keeps all
+		public void setSampling(int n) {
+			this.sampling = Math.max(n, 1);
+		}
+		
+		// 0 writes every input to a segment of its own
+		public void setMaxFileSize(long bytes) {
+			this.maxFileSize = bytes;
+		}
+		
+		// segments of this writer kept on disk, 0 for no limit
+		public void setMaxFiles(int n) {
+			this.maxFiles = n;
+		}
+		
+		// deflates records that get smaller for it
+		public void setCompression(boolean compress) {
+			this.compress = compress;
+		}
+		
+		// input bytes held in queue, 0 for no limit but capacity
+		public void setMaxQueuedBytes(long bytes) {
+			this.maxQueuedBytes = bytes;
+		}
+		
+		// inputs lost to full queue
+		public long getDropped() {
+			return dropped.get();
+		}
+		
+		public boolean submit(byte[] data) {
+			return submit(data, data.length, null);
+		}
+		
+		/*
+			Queues data[0, length) for writing with source id, which may be null. Data
+			must not be modified afterwards. Returns false when not sampled or dropped.
+		*/
+		public boolean submit(byte[] data, int length, String source) {
+			if (closed || ((submitted.getAndIncrement() % sampling) != 0)) return false;
+			return queue(new Dump(ByteBuffer.wrap(data, 0, length), source));
+		}
+		
+		/*
+			Queues data from position to limit as submit(byte[], int, String), buffer
+			position is left as is. Buffer is not copied, writer thread reads it in
+			chunks so a direct or mapped one must stay valid, and a mapped file must
+			not be changed, until flush(). Input larger than maxQueuedBytes is dropped.
+		*/
+		public boolean submit(ByteBuffer data, String source) {
+			if (closed || ((submitted.getAndIncrement() % sampling) != 0)) return false;
+			if ((maxQueuedBytes > 0) && (data.remaining() > maxQueuedBytes)) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			return queue(new Dump(data.slice(), source));
+		}
+		
+		// pending is counted only while open so close() knows when queue is drained
+		private boolean queue(Dump dump) {
+			synchronized (this) {
+				while ((queuedBytes > 0) && (maxQueuedBytes > 0) && (queuedBytes + dump.length > maxQueuedBytes)) {
+					if (!blocking || closed) {
+						dropped.incrementAndGet();
+						return false;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped.incrementAndGet();
+						return false;
+					}
+				}
+				if (!start()) return false;
+				pending++;
+				queuedBytes += dump.length;
+			}
+			boolean queued;
+			if (blocking) {
+				try {
+					queue.put(dump);
+					queued = true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					queued = false;
+				}
+			} else {
+				queued = queue.offer(dump);
+			}
+			if (!queued) {
+				dropped.incrementAndGet();
+				done(dump);
+			}
+			return queued;
+		}
+		
+		// waits until inputs queued so far are written
+		public void flush() throws InterruptedException {
+			synchronized (this) {
+				while (pending > 0) wait();
+			}
+		}
+		
+		// writes queued inputs and stops, further inputs are dropped
+		public void close() throws InterruptedException {
+			Thread t;
+			Thread h;
+			synchronized (this) {
+				closed = true;
+				t = thread;
+				thread = null;
+				h = hook;
+				hook = null;
+			}
+			if ((h != null) && (h != Thread.currentThread())) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(h);
+				} catch (IllegalStateException e) {
+					// JVM exiting, hook is running or about to
+				}
+			}
+			if (t != null) {
+				// a thread killed by an Error would never make room for STOP
+				while (t.isAlive() && !queue.offer(STOP, 100, TimeUnit.MILLISECONDS)) { }
+				t.join();
+			}
+		}
+		
+		// starts writer thread unless closed, returns false when closed
+		private synchronized boolean start() {
+			if (closed) return false;
+			if (thread == null) {
+				thread = new Thread(this, "vt100ish-dump");
+				thread.setDaemon(true);
+				thread.start();
+				if (hook == null) {
+					hook = new Thread(() -> {
+						try {
+							close();
+						} catch (InterruptedException e) {
+							// queued inputs lost
+						}
+					}, "vt100ish-dump-close");
+					try {
+						Runtime.getRuntime().addShutdownHook(hook);
+					} catch (IllegalStateException e) {
+						// JVM exiting, input may be lost as the thread is a daemon
+					}
+				}
+			}
+			return true;
+		}
+		
+		private synchronized boolean isPending() {
+			return pending > 0;
+		}
+		
+		// wakes flush() and callers waiting for queued bytes to go down
+		private synchronized void done(Dump dump) {
+			pending--;
+			queuedBytes -= dump.length;
+			notifyAll();
+		}
+		
+		public void run() {
+			try {
+				// segments found in directory are rotated out first, see inUse()
+				segments.addAll(Arrays.asList(DumpArchive.list(directory)));
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			try {
+				Dump dump;
+				boolean stopping = false;
+				// after STOP inputs of submit() calls racing close() are still taken
+				while (!stopping || isPending()) {
+					dump = stopping ? queue.poll(100, TimeUnit.MILLISECONDS) : queue.take();
+					if (dump == STOP) {
+						stopping = true;
+						continue;
+					}
+					if (dump == null) continue;
+					try {
+						write(dump);
+						if (queue.isEmpty()) {
+							out.flush();
+							index.flush();
+						}
+					} catch (IOException | RuntimeException | InternalError e) {
+						// record is lost, a part written may be left unindexed in
+						// segment so next record starts a new one. InternalError is
+						// a fault reading a mapped input whose file was truncated
+						System.err.println(e);
+						closeSegment();
+					} finally {
+						done(dump);
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} finally {
+				closeSegment();
+				if (deflater != null) deflater.end();
+			}
+		}
+		
+		// record and its index entry as described in DumpArchive
+		private void write(Dump dump) throws IOException {
+			ByteBuffer payload = dump.data;
+			int length = dump.length;
+			int flags = 0;
+			if (compress && (length > 0)) {
+				if (deflater == null) deflater = new Deflater();
+				if (deflated.length < length) deflated = new byte[length];
+				int n = deflate(dump.data.duplicate(), length);
+				if (n < length) {
+					payload = ByteBuffer.wrap(deflated, 0, n);
+					length = n;
+					flags = DumpArchive.DEFLATED;
+				}
+			}
+			byte[] source = sourceBytes(dump.source);
+			int size = DumpArchive.HEADER_SIZE + source.length + length;
+			if ((out != null) && (segmentSize > 0) && (segmentSize + size > maxFileSize)) {
+				closeSegment();
+			}
+			if (out == null) openSegment();
+			out.writeInt(size - 4);
+			out.writeLong(dump.time);
+			out.writeByte(flags);
+			out.writeInt(dump.length);
+			out.writeShort(source.length);
+			out.write(source);
+			write(payload);
+			index.writeLong(dump.time);
+			index.writeLong(segmentSize);
+			index.writeInt(size);
+			segmentSize += size;
+		}
+		
+		// UTF-8 source id cut to MAX_SOURCE bytes on a character boundary to fit its length field
+		private static byte[] sourceBytes(String source) {
+			if (source == null) return new byte[0];
+			byte[] b = source.getBytes(StandardCharsets.UTF_8);
+			if (b.length <= MAX_SOURCE) return b;
+			int n = MAX_SOURCE;
+			while ((b[n] & 0xc0) == 0x80) n--;
+			return Arrays.copyOf(b, n);
+		}
+		
+		// deflates src into deflated, returns limit when it does not fit in limit bytes
+		private int deflate(ByteBuffer src, int limit) {
+			deflater.reset();
+			int n = 0;
+			while (!deflater.finished() && (n < limit)) {
+				if (deflater.needsInput()) {
+					if (!src.hasRemaining()) {
+						deflater.finish();
+					} else if (src.hasArray()) {
+						deflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+						src.position(src.limit());
+					} else {
+						int k = Math.min(chunk().length, src.remaining());
+						src.get(chunk, 0, k);
+						deflater.setInput(chunk, 0, k);
+					}
+				}
+				n += deflater.deflate(deflated, n, limit - n);
+			}
+			return deflater.finished() ? n : limit;
+		}
+		
+		private void write(ByteBuffer src) throws IOException {
+			if (src.hasArray()) {
+				out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				return;
+			}
+			src = src.duplicate();
+			while (src.hasRemaining()) {
+				int k = Math.min(chunk().length, src.remaining());
+				src.get(chunk, 0, k);
+				out.write(chunk, 0, k);
+			}
+		}
+		
+		private byte[] chunk() {
+			if (chunk == null) chunk = new byte[FEED_BUFFER_SIZE];
+			return chunk;
+		}
+		
+		/*
+			Segment is created new, a name taken by writer of another instance or JVM
+			in same ms is skipped. Its index is named after it and may be overwritten.
+		*/
+		private void openSegment() throws IOException {
+			String name;
+			File file;
+			FileChannel channel = null;
+			do {
+				name = String.format("vt100ish-%s-%06d", dateFormat.format(new Date()), segmentCount++);
+				file = new File(directory, name + DumpArchive.SEGMENT).getAbsoluteFile();
+				opened(file, true);
+				try {
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				} catch (FileAlreadyExistsException e) {
+					// taken, try next count
+					opened(file, false);
+				} catch (IOException e) {
+					opened(file, false);
+					throw e;
+				}
+			} while (channel == null);
+			OutputStream indexStream;
+			try {
+				channel.tryLock();
+				indexStream = new FileOutputStream(new File(directory, name + DumpArchive.INDEX));
+			} catch (IOException e) {
+				channel.close();
+				file.delete();
+				opened(file, false);
+				throw e;
+			}
+			segment = file;
+			out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			index = new DataOutputStream(new BufferedOutputStream(indexStream));
+			segmentSize = 0;
+			segments.addLast(file);
+			while ((maxFiles > 0) && (segments.size() > maxFiles)) {
+				File oldest = segments.removeFirst();
+				// one open elsewhere is left to the writer rotating it
+				if (!inUse(oldest)) {
+					oldest.delete();
+					DumpArchive.indexOf(oldest).delete();
+				}
+			}
+		}
+		
+		private void closeSegment() {
+			close(out);
+			close(index);
+			out = null;
+			index = null;
+			if (segment != null) opened(segment, false);
+			segment = null;
+		}
+		
+		private static void opened(File segment, boolean open) {
+			synchronized (OPEN) {
+				if (open) {
+					OPEN.add(segment);
+				} else {
+					OPEN.remove(segment);
+				}
+			}
+		}
+		
+		/*
+			Whether a writer has segment open. Those of this JVM are known, one of
+			another JVM holds a lock on it. Lock is not tried on a file this JVM has
+			open as closing the probing channel could release the writer's lock.
+		*/
+		private static boolean inUse(File segment) {
+			synchronized (OPEN) {
+				if (OPEN.contains(segment.getAbsoluteFile())) return true;
+			}
+			FileChannel channel;
+			try {
+				channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				return false;
+			}
+			try {
+				FileLock lock = channel.tryLock();
+				if (lock == null) return true;
+				lock.release();
+				return false;
+			} catch (IOException | OverlappingFileLockException e) {
+				return true;
+			} finally {
+				close(channel);
+			}
+		}
+		
+		private static void close(Closeable stream) {
+			if (stream == null) return;
+			try {
+				stream.close();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+		}
+	}
+	
+	/*
+		Reads dumps written by DumpWriter. Directory holds segments of records with
+		a sidecar index each, named vt100ish-<UTC time>-<n>.dump and .idx. Record:
+		
+			int     size of rest of record
+			long    time, ms since epoch
+			byte    flags, DEFLATED when payload is compressed
+			int     input length
+			short   source id length, UTF-8 source id
+			byte[]  payload
+		
+		Index entry per record: long time, long offset in segment, int record size.
+		Only indexes are read on opening, records are read when asked for. Records
+		a writer appended after the archive was opened are not seen.
+	*/
+	public static class DumpArchive {
+		public static final String SEGMENT = ".dump";
+		public static final String INDEX = ".idx";
+		public static final int DEFLATED = 1;
+		private static final int HEADER_SIZE = 4 + 8 + 1 + 4 + 2;
+		private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+		
+		private File[] segments;
+		private int count;
+		private long[] time;
+		private int[] segment;
+		private long[] offset;
+		private int[] size;
+		
+		public DumpArchive(File directory) throws IOException {
+			List<File> found = new ArrayList<File>();
+			for (File f : list(directory)) {
+				if (indexOf(f).isFile()) found.add(f);
+			}
+			segments = found.toArray(new File[found.size()]);
+			int total = 0;
+			for (File f : segments) total += (int) (indexOf(f).length() / INDEX_ENTRY_SIZE);
+			time = new long[total];
+			segment = new int[total];
+			offset = new long[total];
+			size = new int[total];
+			for (int s = 0; s < segments.length; s++) {
+				byte[] idx = Files.readAllBytes(indexOf(segments[s]).toPath());
+				ByteBuffer b = ByteBuffer.wrap(idx);
+				while ((b.remaining() >= INDEX_ENTRY_SIZE) && (count < total)) {
+					time[count] = b.getLong();
+					offset[count] = b.getLong();
+					size[count] = b.getInt();
+					segment[count] = s;
+					count++;
+				}
+			}
+		}
+		
+		// segments in directory, names start with creation time so they sort in writing order
+		static File[] list(File directory) throws IOException {
+			File[] files = directory.listFiles();
+			if (files == null) throw new IOException(directory + " is not a directory");
+			List<File> found = new ArrayList<File>();
+			for (File f : files) {
+				String name = f.getName();
+				if (name.startsWith("vt100ish-") && name.endsWith(SEGMENT)) found.add(f);
+			}
+			File[] segments = found.toArray(new File[found.size()]);
+			Arrays.sort(segments);
+			return segments;
+		}
+		
+		private static File indexOf(File segment) {
+			String name = segment.getName();
+			return new File(segment.getParentFile(), name.substring(0, name.length() - SEGMENT.length()) + INDEX);
+		}
+		
+		public int size() {
+			return count;
 		}
 		
-		public void display() {
-			System.out.print(this.toString());
+		public long getTime(int record) {
+			return time[record];
 		}
 		
-		@Override
-		public String toString() {
-			StringBuilder sb = new StringBuilder();
-			
-			for (int x = 0; x < rows; x++) {
-				for (int y = 0; y < cols; y++) {
-					sb.append(buffer[y][x]);
-				}
-				sb.append('\n');
+		// records written in [from, to) ms since epoch, in writing order
+		public int[] find(long from, long to) {
+			int[] found = new int[count];
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				if ((time[i] >= from) && (time[i] < to)) found[n++] = i;
 			}
-			return sb.toString();
+			return Arrays.copyOf(found, n);
 		}
 		
-		public int getRowsCount() {
-			return rows;
+		private ByteBuffer record(int record) throws IOException {
+			FileChannel channel = FileChannel.open(segments[segment[record]].toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer b = ByteBuffer.allocate(size[record]);
+				while (b.hasRemaining()) {
+					if (channel.read(b, offset[record] + b.position()) < 0) {
+						throw new IOException(segments[segment[record]] + " truncated at record " + record);
+					}
+				}
+				b.flip();
+				return b;
+			} finally {
+				channel.close();
+			}
 		}
 		
-		public int getColsCount() {
-			return cols;
+		public String getSource(int record) throws IOException {
+			ByteBuffer b = record(record);
+			int n = b.getShort(HEADER_SIZE - 2) & 0xffff;
+			return (n > 0) ? new String(b.array(), HEADER_SIZE, n, StandardCharsets.UTF_8) : null;
 		}
 		
-		public boolean getWrapping() {
-			return wrap;
+		// input as given to parse(), without trailing 0x00
+		public byte[] read(int record) throws IOException {
+			ByteBuffer b = record(record);
+			int flags = b.get(12);
+			int length = b.getInt(13);
+			int start = HEADER_SIZE + (b.getShort(HEADER_SIZE - 2) & 0xffff);
+			if ((flags & DEFLATED) == 0) {
+				return Arrays.copyOfRange(b.array(), start, start + length);
+			}
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(b.array(), start, b.limit() - start);
+				byte[] data = new byte[length];
+				int n = 0;
+				while ((n < length) && !inflater.finished()) {
+					int k = inflater.inflate(data, n, length - n);
+					if ((k == 0) && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += k;
+				}
+				if (n != length) throw new IOException("record " + record + " does not inflate to " + length + " bytes");
+				return data;
+			} catch (DataFormatException e) {
+				throw new IOException("record " + record + " is corrupt", e);
+			} finally {
+				inflater.end();
+			}
 		}
 		
-		public void saveCursorPos() {
-			savedCursorX = cursorX;
-			savedCursorY = cursorY;
+		/*
+			Renders record on a new console of vt with render(ByteBuffer), same screen
+			as parse() and render() but the input is not dumped again.
+		*/
+		public Frame replay(int record, Vt100ish vt) throws IOException {
+			vt.render(ByteBuffer.wrap(read(record)));
+			return vt.snapshot();
 		}
 		
-		public void restoreCursorPos() {
-			cursorX = savedCursorX;
-			cursorY = savedCursorY;
+		// frames of records written in [from, to), each rendered on vt in turn
+		public List<Frame> replay(long from, long to, Vt100ish vt) throws IOException {
+			List<Frame> frames = new ArrayList<Frame>();
+			for (int record : find(from, to)) {
+				frames.add(replay(record, vt));
+			}
+			return frames;
 		}
 	}
 	
-	private class Token {
-		int start; // start offset
-		int end; // end offset
-		COMMAND type; // type of token
+	/*
+		Idle consoles keyed by geometry and attribute plane, shared by all instances so
+		workers creating an instance per capture reuse screens too. Bounded to capacity
+		consoles in total, further ones are left to the garbage collector.
+	*/
+	private static class ConsolePool {
+		private HashMap<Long, ArrayDeque<Console>> idle = new HashMap<Long, ArrayDeque<Console>>();
+		private int capacity;
+		private int size;
 		
-		public Token() { }
+		public ConsolePool(int capacity) {
+			this.capacity = capacity;
+		}
 		
-		public Token(Token t) {
-			start = t.getStartOffset();
-			end = t.getEndOffset();
-			type = t.getType();
+		private static long key(int cols, int rows, boolean wrap, boolean attributes) {
+			return ((long) cols << 32) | ((long) rows << 2) | (wrap ? 2 : 0) | (attributes ? 1 : 0);
 		}
 		
-		public int getStartOffset() {
-			return start;
+		// idle console of given geometry not yet reset, null when none
+		public synchronized Console acquire(int cols, int rows, boolean wrap, boolean attributes) {
+			ArrayDeque<Console> q = idle.get(key(cols, rows, wrap, attributes));
+			if ((q == null) || q.isEmpty()) return null;
+			size--;
+			return q.pollLast();
 		}
 		
-		public void setStartOffset(int n) {
-			start = n;
+		public synchronized void release(Console c) {
+			if (size >= capacity) return;
+			Long k = key(c.getColsCount(), c.getRowsCount(), c.getWrapping(), c.hasAttributes());
+			ArrayDeque<Console> q = idle.get(k);
+			if (q == null) {
+				q = new ArrayDeque<Console>();
+				idle.put(k, q);
+			}
+			q.addLast(c);
+			size++;
 		}
+	}
+	
+	/*
+		Scrollback of lines leaving the screen, oldest first. Lines are kept without
+		trailing blanks as one byte per Latin-1 character, oldest are dropped once
+		either cap is exceeded.
+	*/
+	private static class History {
+		private ArrayDeque<byte[]> lines = new ArrayDeque<byte[]>();
+		private int maxLines; // 0 for no limit
+		private int maxBytes; // 0 for no limit
+		private long bytes;
 		
-		public int getEndOffset() {
-			return end;
+		public History(int maxLines, int maxBytes) {
+			this.maxLines = maxLines;
+			this.maxBytes = maxBytes;
 		}
 		
-		public void setEndOffset(int n) {
-			end = n;
+		// new caps apply from next line added
+		public void limit(int maxLines, int maxBytes) {
+			this.maxLines = maxLines;
+			this.maxBytes = maxBytes;
 		}
 		
-		public COMMAND getType() {
-			return type;
+		public void clear() {
+			lines.clear();
+			bytes = 0;
 		}
 		
-		public void setType(COMMAND n) {
-			type = n;
+		public void add(char[] row) {
+			int n = row.length;
+			while ((n > 0) && (row[n - 1] == ' ')) n--;
+			byte[] line = new byte[n];
+			for (int i = 0; i < n; i++) {
+				char c = row[i];
+				line[i] = (c <= 0xff) ? (byte) c : (byte) '?';
+			}
+			lines.addLast(line);
+			bytes += n;
+			while (((maxLines > 0) && (lines.size() > maxLines)) || ((maxBytes > 0) && (bytes > maxBytes))) {
+				bytes -= lines.removeFirst().length;
+			}
 		}
 		
-		public int length() {
-			return end - start + 1;
+		public int size() {
+			return lines.size();
 		}
 		
-		public byte[] getData() {
-			if ((Vt100ish.this.bytes != null) && (start < end) && (end < Vt100ish.this.bytes.length)) {			
-				return Arrays.copyOfRange(Vt100ish.this.bytes, start, Math.min(end+1, Vt100ish.this.bytes.length-1));
-			}
-			return new byte[] {0x00};
+		public long getBytes() {
+			return bytes;
 		}
 		
-		@Override
-		public String toString(){
-			return String.format("[%d, %d, %d, %s]", start, end, length(), type);
+		// lines are converted one at a time as the stream is consumed
+		public Stream<String> lines() {
+			return new ArrayList<byte[]>(lines).stream().map(b -> new String(b, StandardCharsets.ISO_8859_1));
 		}
 	}
 	
-
 /*********************** PUBLIC METHODS ***********************/	
 	/*
-		The imput stream must have no CR or LF.
-		It is assumed there is no white spaces in the commands.- if there are then 
-		all command classifying regex will need to be reviewed
-		Whitespaces are permitted in data and will be reflected acoordingly.
+		Reads whole stream and decodes it, bytes before first ESC are skipped.
+		CR, LF, VT and FF are executed, also inside a sequence, so the stream may hold
+		several lines. White space is permitted in data and will be reflected accordingly.
+		In legacy mode commands must have no white space, CR or LF, as up to v1.6.
 	*/
 	public void parse(InputStream stream) throws IOException {
 	
@@ -391,24 +2462,104 @@ public class Vt100ish {
 		
 		buffer.flush();
 
-		bytes = new byte[buffer.size()];
 		bytes = buffer.toByteArray();
-		tokens = new LinkedList<Token>();
-		if (console == null) {
-			console = new Console();
+		parseBytes();
+	}
+	
+	/*
+		As parse(InputStream) decoding file in place through a memory mapping, the
+		file is not copied. Tokens refer to the mapping which stays until next parse,
+		so file must not be modified meanwhile nor, in DUMP_MODE, before dump writer
+		has read it, see DumpWriter.submit(ByteBuffer, String). Offsets are int,
+		larger files can be rendered with render(Path). Legacy mode reads the file
+		into an array.
+	*/
+	public void parse(Path path) throws IOException {
+		MappedByteBuffer map;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 9) {
+				throw new IOException(path + " of " + size + " bytes is too large to parse, use render(Path)");
+			}
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			channel.close();
+		}
+		if (legacyMode) {
+			// trailing 0x00 as parse(InputStream)
+			bytes = new byte[map.remaining() + 1];
+			map.get(bytes, 0, bytes.length - 1);
+			parseBytes();
 		} else {
-			console = new Console(console.getColsCount(), console.getRowsCount(), console.getWrapping());
+			source = map;
+			parseSource();
 		}
+	}
+	
+	// tokenizes bytes, last byte being 0x00 sentinel
+	private void parseBytes() {
+		source = null;
+		newConsole();
 		
-		if (DUMP_MODE && (DUMP_LEVEL > 2)) {
-			try {
-				FileOutputStream fos = new FileOutputStream(System.getProperty("java.io.tmpdir")+"/vt100ish-"+getDateTimeMillis()+".dump");
-				fos.write(bytes);
-				fos.close();
-			} catch (Exception e) {
-				System.err.println(e);
-			}
+		DumpWriter writer = dumpWriter;
+		if ((writer != null) && (DUMP_LEVEL > 2)) {
+			// bytes is never modified once parsed, queued without copy
+			writer.submit(bytes, bytes.length - 1, sourceId);
+		}
+		
+		tokens.clear();
+		if (legacyMode) {
+			parseLegacy();
+		} else {
+			// single forward pass producing final command and data tokens,
+			// trailing 0x00 is not part of input
+			decoder.setHandler(recorder);
+			decoder.reset();
+			decoder.feed(bytes, 0, bytes.length - 1);
+		}
+
+		if (DEV_MODE) {
+			printTokens();
+		}
+	}
+	
+	// tokenizes mapped source in place, token offsets are indices in it
+	private void parseSource() {
+		bytes = null;
+		newConsole();
+		
+		DumpWriter writer = dumpWriter;
+		if ((writer != null) && (DUMP_LEVEL > 2)) {
+			writer.submit(source, sourceId);
+		}
+		
+		tokens.clear();
+		decoder.setHandler(recorder);
+		decoder.reset();
+		decoder.feed(source.duplicate());
+
+		if (DEV_MODE) {
+			printTokens();
 		}
+	}
+	
+	// input range of a token as text, from bytes or source
+	private String text(int off, int len) {
+		if (source == null) return new String(bytes, off, len, StandardCharsets.ISO_8859_1);
+		byte[] b = new byte[len];
+		ByteBuffer buf = source.duplicate();
+		buf.position(off);
+		buf.get(b);
+		return new String(b, StandardCharsets.ISO_8859_1);
+	}
+	
+	/*
+		Three phase parse used up to v1.6: split on ESC, classify each token
+		with P_ regex then split command and data with PS_ regex.
+	*/
+	private void parseLegacy() {
+		List<Token> tokens = new LinkedList<Token>();
 		
 		// split into tokens on <ESC> (x01b) boundaries
 		// there will be tokens that will be followed by data
@@ -475,26 +2626,73 @@ public class Vt100ish {
 			}
 			i++;
 		}
-
-		if (DEV_MODE) {
-			i=0;
-			while (i < tokens.size()) {
-				Token t = tokens.get(i);
-				System.out.print(t);
-				if (t.getType() == COMMAND.DATA) {
-					byte[] dta = t.getData();
-					if (dta == null) 
-						System.out.print(" \"\"");
-					else 
-						System.out.print(" \"" + (new String(dta)) + "\"");
-				}
-				if (t.getType() == COMMAND.MOVE_CURSOR)
-					System.out.print(" " + (new String(t.getData())).substring(2,(new String(t.getData())).length()-2));
-				System.out.println();
-				i++;
-			}
-			for (i=0; i<26; i++) System.out.println();
-		}		
+		
+		// trailing 0x00 is left out of last token as getData() did
+		int[] params = new int[2];
+		for (Token t : tokens) {
+			int end = Math.min(t.getEndOffset(), bytes.length - 2);
+			this.tokens.add(t.getStartOffset(), end, t.getType(), params, 0, legacyParams(t, params));
+		}
+	}
+	
+	// decodes params of legacy token into params as render() did up to v1.6, returns count
+	private int legacyParams(Token t, int[] params) {
+		CharSequence data = new String(t.getData());
+		switch (t.getType()) {
+			case ERASE_IN_LINE: {
+				params[0] = 0;
+				Matcher m = P_ERASE_IN_LINE.matcher(data);
+				if (m.matches() && !m.group(2).equals("")) {
+					params[0] = Integer.parseInt(m.group(2));
+				}
+				return 1;
+			}
+			case MOVE_CURSOR: {
+				params[0] = 0;
+				params[1] = 0;
+				Matcher m = P_MOVE_CURSOR.matcher(data);
+				if (m.matches()) {
+					params[0] = Integer.parseInt(m.group(2));
+					params[1] = Integer.parseInt(m.group(3));
+				}
+				return 2;
+			}
+			case CURSOR_DOWN:
+				return legacyCount(P_CURSOR_DOWN, data, params);
+			case CURSOR_UP:
+				return legacyCount(P_CURSOR_UP, data, params);
+			case CURSOR_RIGHT:
+				return legacyCount(P_CURSOR_RIGHT, data, params);
+			case CURSOR_LEFT:
+				return legacyCount(P_CURSOR_LEFT, data, params);
+		}
+		return 0;
+	}
+	
+	// count argument of cursor motion token, 1 when absent
+	private static int legacyCount(Pattern p, CharSequence data, int[] params) {
+		params[0] = 1;
+		Matcher m = p.matcher(data);
+		if (m.matches()) {
+			params[0] = Integer.parseInt(m.group(2));
+		}
+		return 1;
+	}
+	
+	private void printTokens() {
+		int i=0;
+		TokenStore.Cursor c = tokens.cursor();
+		while (c.next()) {
+			System.out.print(String.format("[%d, %d, %d, %s]", c.getStartOffset(), c.getEndOffset(), c.length(), c.getType()));
+			if (c.getType() == COMMAND.DATA) {
+				System.out.print(" \"" + text(c.getStartOffset(), c.length()) + "\"");
+			}
+			if (c.getType() == COMMAND.MOVE_CURSOR) {
+				System.out.print(" " + text(c.getStartOffset() + 2, c.length() - 3));
+			}
+			System.out.println();
+		}
+		for (i=0; i<26; i++) System.out.println();
 	}
 	
 	// splits token to command and data tokens
@@ -586,8 +2784,105 @@ public class Vt100ish {
 		return null;
 	}
 	
+	// id recorded with input of following parse() calls in dump archive, e.g. switch name,
+	// cut to its first 65535 UTF-8 bytes
+	public void setSourceId(String id) {
+		sourceId = id;
+	}
+	
+	public String getSourceId() {
+		return sourceId;
+	}
+	
+	/*
+		Selects regex based classification used up to v1.6 instead of Decoder,
+		kept to allow comparing outputs.
+	*/
+	public void setLegacyMode(boolean legacy) {
+		legacyMode = legacy;
+	}
+	
+	public boolean isLegacyMode() {
+		return legacyMode;
+	}
+	
+	// CSI parameters dropped by parse() and feed() of this instance, see Decoder
+	public long getDroppedParams() {
+		return decoder.getDroppedParams();
+	}
+	
 	public void setConsole(int cols, int rows, boolean wrap) {
-		console = new Console(cols, rows, wrap);
+		createConsole(cols, rows, wrap);
+	}
+	
+	/*
+		Keeps SGR colour and rendition of every cell, see getAttributes(int, int).
+		Off by default so plain text use does not pay for the attribute plane.
+	*/
+	public void setAttributes(boolean enabled) {
+		attributes = enabled;
+		if (console != null) {
+			createConsole(console.getColsCount(), console.getRowsCount(), console.getWrapping());
+		}
+	}
+	
+	public boolean isAttributes() {
+		return attributes;
+	}
+	
+	/*
+		Keeps lines scrolled off the top of the screen, up to maxLines lines or maxBytes
+		characters whichever is reached first, 0 for no limit. Both 0 disables scrollback.
+	*/
+	public void setScrollback(int maxLines, int maxBytes) {
+		historyLines = Math.max(maxLines, 0);
+		historyBytes = Math.max(maxBytes, 0);
+		if (console != null) {
+			createConsole(console.getColsCount(), console.getRowsCount(), console.getWrapping());
+		}
+	}
+	
+	// scrolled off lines oldest first, unaffected by lines scrolled after the call
+	public Stream<String> getScrollback() {
+		if ((console == null) || (console.getHistory() == null)) return Stream.empty();
+		return console.getHistory().lines();
+	}
+	
+	// immutable copy of current screen, see Frame
+	public Frame snapshot() {
+		if (console == null) initConsole();
+		return console.snapshot();
+	}
+	
+	public int getScrollbackSize() {
+		if ((console == null) || (console.getHistory() == null)) return 0;
+		return console.getHistory().size();
+	}
+	
+	// packed ATTR_ bits of cell, 0 when attributes are not enabled
+	public int getAttributes(int row, int col) {
+		if (console == null) return 0;
+		return console.getAttributes(row, col);
+	}
+	
+	// colour 0-15 of packed attributes, -1 for default
+	public static int getForeground(int attr) {
+		return (attr & ATTR_FG_MASK) - 1;
+	}
+	
+	public static int getBackground(int attr) {
+		return ((attr & ATTR_BG_MASK) >> ATTR_BG_SHIFT) - 1;
+	}
+	
+	/*
+		Returns console to the pool shared by all instances, to be called when done
+		with an instance so the next one created can reuse the screen.
+	*/
+	public void release() {
+		if (console != null) {
+			CONSOLES.release(console);
+			console = null;
+		}
 	}
 	
 	/* reinitialize console */
@@ -612,99 +2907,135 @@ public class Vt100ish {
 	
 	public void render() {
 		if (console == null) initConsole();
-		if (tokens.size() <2) return;
-		for (Token t : tokens) {
-			COMMAND cmd = t.getType();
-			switch (cmd) {
-				case CURSOR_HOME:
-					console.cursorX = 0;
-					console.cursorY = 0;
-					break;
-/*
-				case COMMAND.ERASE_IN_DISPLAY:
-				case COMMAND.SELECT_GRAPHIC_RENDITION:
-				case COMMAND.IGNORE:
-*/
-				case ERASE_IN_LINE: {
-					int param = 0;
-					Matcher m = P_ERASE_IN_LINE.matcher(new String(t.getData()));
-					if(m.matches()) {
-						if (! m.group(2).equals("")) {
-							param = Integer.parseInt(m.group(2));
-						}
-						switch (param) {
-							case 0: {
-								// From Cursor to End of Line
-								char[] cc = (new String(new char[console.getColsCount() - console.cursorX]).replace('\0', ' ')).toCharArray();
-								console.write(cc);
-								break;
-							}
-							case 1: {
-								//  From Beginning of Line to Cursor
-								char[] cc = (new String(new char[console.cursorX]).replace('\0', ' ')).toCharArray();
-								console.write(0, console.cursorY, cc);
-								break;
-							}
-							case 2: {
-								// Entire Line
-								char[] cc = (new String(new char[console.getColsCount()]).replace('\0', ' ')).toCharArray();
-								console.write(0, console.cursorY, cc);
-								break;
-							}
-						}
-					}
-					break;
-				}
-				case MOVE_CURSOR: {
-					int x=0; //column
-					int y=0; //line
-					Matcher m = P_MOVE_CURSOR.matcher(new String(t.getData()));
-					if (m.matches()){
-						x = Integer.parseInt(m.group(3));
-						y = Integer.parseInt(m.group(2));
-					}
-					console.cursorY = (y>0?--y:y); // line offset to 0 index
-					console.cursorX = (x>0?--x:x); // column offset to 0 index
-					break; 
-				}
-				case CURSOR_DOWN: {
-					// "^\\x1b\\[([(0-9]+)B$"
-					int y = 1;
-					Matcher m = P_CURSOR_DOWN.matcher(new String(t.getData()));
-					if (m.matches()){ 
-						y = Integer.parseInt(m.group(2));
-					}
-					console.cursorY += y;
-					break; 
-				}
-				case CURSOR_UP: {
-					// "^\\x1b\\[([(0-9]+)C$"
-					int y = 1;
-					Matcher m = P_CURSOR_DOWN.matcher(new String(t.getData()));
-					if (m.matches()){ 
-						y = Integer.parseInt(m.group(2));
-					}
-					console.cursorY -= y;
-					break; 
-				}			
-				case SAVE_CURSOR_ATTRIBS:
-					console.saveCursorPos();
-					break;
-				case RESTORE_CURSOR_ATTRIBS:
-					console.restoreCursorPos();
-					break;
-				case DATA: {
-					if (t.getStartOffset() == t.getEndOffset()) {
-						break;
-					}
-					if (t.getData() != null) 
-						console.write((new String(t.getData()).toCharArray()));
-					break;
-				}
+		if (tokens.size() == 0) return;
+		if (source != null) {
+			tokens.replay(console, source);
+		} else {
+			tokens.replay(console, bytes);
+		}
+	}
+	
+	/*
+		Fused parse() and render() for bulk conversion, each sequence is applied to
+		a new console as soon as it is decoded so no input copy nor tokens are kept.
+		Input is not dumped in DUMP_MODE.
+	*/
+	public void renderDirect(InputStream stream) throws IOException {
+		newConsole();
+		bytes = null;
+		source = null;
+		tokens.clear();
+		decoder.reset();
+		if (feedBuffer == null) feedBuffer = new byte[FEED_BUFFER_SIZE];
+		int nRead;
+		while ((nRead = stream.read(feedBuffer, 0, feedBuffer.length)) > -1) {
+			feed(feedBuffer, 0, nRead);
+		}
+	}
+	
+	/*
+		Renders file onto a new console like renderDirect(InputStream), decoding it
+		from memory mapped windows of MAP_WINDOW_SIZE bytes so files of any size,
+		over 2GB included, never go through the heap. Sequences straddling a window
+		edge are completed from decoder state when next window is fed.
+	*/
+	public void render(Path path) throws IOException {
+		newConsole();
+		bytes = null;
+		source = null;
+		tokens.clear();
+		decoder.reset();
+		decoder.setHandler(console);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			for (long pos = 0; pos < size; pos += MAP_WINDOW_SIZE) {
+				decoder.feed(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW_SIZE, size - pos)));
 			}
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/*
+		Renders buffer from position to limit onto a new console like renderDirect(),
+		heap and direct buffers alike are decoded in place without copy.
+	*/
+	public void render(ByteBuffer buf) {
+		newConsole();
+		bytes = null;
+		source = null;
+		tokens.clear();
+		decoder.reset();
+		feed(buf);
+	}
+	
+	/*
+		Renders channel content onto a new console reading it through a direct buffer
+		decoded in place. Channel is read to end of stream and is not closed.
+	*/
+	public void render(ReadableByteChannel channel) throws IOException {
+		newConsole();
+		bytes = null;
+		source = null;
+		tokens.clear();
+		decoder.reset();
+		if (channelBuffer == null) channelBuffer = ByteBuffer.allocateDirect(FEED_BUFFER_SIZE);
+		channelBuffer.clear();
+		while (channel.read(channelBuffer) > -1) {
+			channelBuffer.flip();
+			feed(channelBuffer);
+			channelBuffer.clear();
+		}
+	}
+	
+	/*
+		Incremental parsing of live console output. Chunk is decoded and applied to
+		console straight away, escape sequence cut at the end of chunk is completed
+		by the next call. Nothing is retained between calls but decoder state so
+		memory use does not grow with the session. On a new console decoding starts
+		with text, unlike parse() the bytes before first ESC are not skipped.
+	*/
+	public void feed(byte[] buf, int off, int len) {
+		if (console == null) initConsole();
+		decoder.setHandler(console);
+		decoder.feed(buf, off, len);
+	}
+	
+	public void feed(ByteBuffer buf) {
+		if (console == null) initConsole();
+		decoder.setHandler(console);
+		decoder.feed(buf);
+	}
+	
+	/*
+		Decodes stream pushing commands to handler, neither tokens nor console
+		are involved.
+	*/
+	public static void decode(InputStream stream, TerminalEventHandler handler) throws IOException {
+		Decoder decoder = new Decoder(handler);
+		decoder.reset();
+		byte[] data = new byte[FEED_BUFFER_SIZE];
+		int nRead;
+		while ((nRead = stream.read(data, 0, data.length)) > -1) {
+			decoder.feed(data, 0, nRead);
 		}
 	}
 	
+	/*
+		Rows modified since previous call, to push only deltas of the screen
+		to clients. Get the rows content with getRow(int).
+	*/
+	public int[] getChangedRows() {
+		if (console == null) return new int[0];
+		return console.getChangedRows();
+	}
+	
+	public String getRow(int row) {
+		if (console == null) initConsole();
+		return console.getRow(row);
+	}
+	
 	@Override
 	public String toString() {
 		return ((console != null)?console.toString():"Console uinitialized.\n");
@@ -764,15 +3095,126 @@ public class Vt100ish {
 		return COMMAND.IGNORE;
 	}
 	
+	// n-th of pCount params stored from p[pOff], def when absent
+	private static int param(int[] p, int pOff, int pCount, int n, int def) {
+		return (n < pCount) ? p[pOff + n] : def;
+	}
+	
+	// calls handler method for cmd with its params p[pOff, pOff+pCount), DATA is not handled here
+	private static void fire(TerminalEventHandler handler, COMMAND cmd, int[] p, int pOff, int pCount) {
+		switch (cmd) {
+			case CURSOR_HOME:
+				handler.onCursorHome();
+				break;
+			case MOVE_CURSOR:
+				handler.onMoveCursor(param(p, pOff, pCount, 0, 0), param(p, pOff, pCount, 1, 0));
+				break;
+			case CURSOR_UP:
+				handler.onCursorUp(param(p, pOff, pCount, 0, 1));
+				break;
+			case CURSOR_DOWN:
+				handler.onCursorDown(param(p, pOff, pCount, 0, 1));
+				break;
+			case CURSOR_RIGHT:
+				handler.onCursorRight(param(p, pOff, pCount, 0, 1));
+				break;
+			case CURSOR_LEFT:
+				handler.onCursorLeft(param(p, pOff, pCount, 0, 1));
+				break;
+			case CURSOR_NEXT_LINE:
+				handler.onCursorNextLine(param(p, pOff, pCount, 0, 1));
+				break;
+			case CURSOR_PREVIOUS_LINE:
+				handler.onCursorPreviousLine(param(p, pOff, pCount, 0, 1));
+				break;
+			case CURSOR_HORIZONTAL_ABSOLUTE:
+				handler.onCursorColumn(param(p, pOff, pCount, 0, 0));
+				break;
+			case LINE_POSITION_ABSOLUTE:
+				handler.onCursorRow(param(p, pOff, pCount, 0, 0));
+				break;
+			case ERASE_IN_DISPLAY:
+				handler.onEraseInDisplay(param(p, pOff, pCount, 0, 0));
+				break;
+			case ERASE_IN_LINE:
+				handler.onEraseInLine(param(p, pOff, pCount, 0, 0));
+				break;
+			case SELECT_GRAPHIC_RENDITION:
+				handler.onSelectGraphicRendition(p, pOff, pCount);
+				break;
+			case SAVE_CURSOR_ATTRIBS:
+				handler.onSaveCursor();
+				break;
+			case RESTORE_CURSOR_ATTRIBS:
+				handler.onRestoreCursor();
+				break;
+			case LINE_FEED:
+				handler.onLineFeed();
+				break;
+			case CARRIAGE_RETURN:
+				handler.onCarriageReturn();
+				break;
+			case INDEX:
+				handler.onIndex();
+				break;
+			case REVERSE_INDEX:
+				handler.onReverseIndex();
+				break;
+			case NEXT_LINE:
+				handler.onNextLine();
+				break;
+			case SET_SCROLL_REGION:
+				handler.onSetScrollRegion(param(p, pOff, pCount, 0, 0), param(p, pOff, pCount, 1, 0));
+				break;
+		}
+	}
+	
+	/*
+		Blank console of current geometry. Previous one is reset and reused, frames
+		taken from it stay intact as their rows are no longer owned by it.
+	*/
+	private void newConsole() {
+		if (console == null) {
+			initConsole();
+		} else {
+			createConsole(console.getColsCount(), console.getRowsCount(), console.getWrapping());
+		}
+	}
+	
 	private void initConsole() {
-		console = new Console();
+		createConsole(80, 24, false);
+	}
+	
+	// current console goes to pool, from which replacement is taken when one fits
+	private void createConsole(int cols, int rows, boolean wrap) {
+		if (console != null) CONSOLES.release(console);
+		Console c = CONSOLES.acquire(cols, rows, wrap, attributes);
+		if (c != null) {
+			c.reset();
+		} else {
+			c = new Console(cols, rows, wrap);
+			if (attributes) c.enableAttributes();
+		}
+		if ((historyLines > 0) || (historyBytes > 0)) {
+			c.enableHistory(historyLines, historyBytes);
+		} else {
+			c.disableHistory();
+		}
+		console = c;
+		decoder.start();
+	}
+	
+	/*
+		Sets writer receiving input of every parse(), null disables dumping. Applies
+		to all instances. Initially a DumpWriter to java.io.tmpdir when DUMP_MODE.
+	*/
+	public static void setDumpWriter(DumpWriter writer) {
+		dumpWriter = writer;
 	}
 	
-	private  final static String getDateTimeMillis()  {
-		DateFormat df = new SimpleDateFormat("yyyy-MM-dd_hh-mm-ss-S");
-		df.setTimeZone(TimeZone.getTimeZone("UTC"));
-		return df.format(new Date());
-	}  
+	public static DumpWriter getDumpWriter() {
+		return dumpWriter;
+	}
 	
 /*********************** DEMO ***********************/	
 	